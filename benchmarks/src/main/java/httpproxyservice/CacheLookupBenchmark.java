@@ -0,0 +1,106 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ *
+ * Looks an object up as sendCached() of the proxy does: the entry in the
+ * CacheIndex, its freshness, and the content in the MemoryCache. The index
+ * holds the given number of objects, a quarter of them are in memory.
+ * Measured with one thread and with four, which share the caches.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheLookupBenchmark {
+
+	private static final Logger logger = Logger.getLogger("CacheLookupBenchmark");
+
+	@Param({ "10000" })
+	public int objects;
+
+	private File dir;
+	private CacheIndex cacheIndex;
+	private MemoryCache memoryCache;
+	private String[] urls;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("cache").toFile();
+		cacheIndex = new CacheIndex(new File(dir, "cache.idx"), logger);
+		memoryCache = new MemoryCache(64L * 1024 * 1024, 1024 * 1024);
+		urls = new String[objects];
+		long now = System.currentTimeMillis();
+		ByteBuffer content = ByteBuffer.allocateDirect(1024);
+		for (int i = 0; i < objects; i++) {
+			urls[i] = "/objects/" + i + ".html";
+			cacheIndex.put(new CacheEntry(urls[i], 200, "\"400-" + i + "\"", now, "text/html", null, now,
+					now + 3600000, 1024));
+			if (i % 4 == 0) {
+				memoryCache.put(urls[i], content.duplicate(), "text/html");
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cacheIndex.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * The next URL of each thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next;
+	}
+
+	private String next(Cursor cursor) {
+		cursor.next = (cursor.next + 7919) % urls.length; // Spread over the index
+		return urls[cursor.next];
+	}
+
+	@Benchmark
+	public Object lookup(Cursor cursor) {
+		String url = next(cursor);
+		CacheEntry entry = cacheIndex.get(url);
+		if (entry == null || !entry.isFresh(System.currentTimeMillis(), null)) {
+			return null;
+		}
+		cacheIndex.touch(url);
+		MemoryCache.Entry hot = memoryCache.get(url);
+		return hot != null ? hot : entry;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object lookupShared(Cursor cursor) {
+		return lookup(cursor);
+	}
+}
@@ -0,0 +1,113 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ *
+ * Sends a header and a file to a client over a loopback connection, as
+ * sendContent() of the handlers does: reading the whole file into the heap,
+ * through ContentSender with FileChannel.transferTo(), and from the mapping of
+ * MappedFileCache. A thread drains the other end of the connection.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentBenchmark {
+
+	private static final byte[] HEADER = ("HTTP/1.1 200 OK\r\nServer: MyHttpServer/1.0\r\n"
+			+ "Content-type: application/octet-stream\r\nConnection: keep-alive\r\n\r\n")
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+	@Param({ "4096", "1048576" })
+	public int length;
+
+	private File file;
+	private ServerSocketChannel server;
+	private SocketChannel channel;
+	private SocketChannel peer;
+	private ResponseOutputStream outputStream;
+	private MappedFileCache mappedFiles;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = File.createTempFile("content", ".bin");
+		file.deleteOnExit();
+		byte[] content = new byte[length];
+		new Random(42).nextBytes(content);
+		Files.write(file.toPath(), content);
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		channel = SocketChannel.open(server.getLocalAddress());
+		peer = server.accept();
+		Thread drain = new Thread(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+			try {
+				while (peer.read(buffer) != -1) {
+					buffer.clear();
+				}
+			} catch (IOException ex) {
+				// Closed at the end of trial
+			}
+		}, "drain");
+		drain.setDaemon(true);
+		drain.start();
+		outputStream = new ResponseOutputStream(channel.socket().getOutputStream());
+		mappedFiles = new MappedFileCache(64L * 1024 * 1024, 0);
+		mappedFiles.get(file); // Mapped on the second request
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		channel.close();
+		peer.close();
+		server.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void readAllBytes() throws IOException {
+		outputStream.write(HEADER);
+		byte[] content = Files.readAllBytes(file.toPath());
+		outputStream.write(content);
+		outputStream.flush();
+	}
+
+	@Benchmark
+	public void transferTo() throws IOException {
+		outputStream.write(HEADER);
+		ContentSender.sendFile(file, outputStream, channel);
+		outputStream.flush();
+	}
+
+	@Benchmark
+	public void mapped() throws IOException {
+		outputStream.write(HEADER);
+		ContentSender.sendBuffer(mappedFiles.get(file), outputStream, channel);
+		outputStream.flush();
+	}
+}
@@ -0,0 +1,192 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Requests objects through HttpProxyServer from many clients at once, each on
+ * a new connection, as the handlers of the fixed thread pool and of virtual
+ * threads ("--virtual") wait on a slow origin. Every response is "no-store",
+ * so each request is a miss forwarded through the upstream pool. The origin
+ * either closes every connection or keeps it alive, so the pool reuses it and
+ * only the latency of origin is waited for. The origin listens on
+ * HttpServer.DEFAULT_PORT, where the proxy sends its misses, so no HttpServer
+ * may run meanwhile. Virtual threads need the benchmarks to run on Java 21.
+ *
+ * @author Li Taiji
+ * @date 2019-12-08
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(64)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+public class ExecutorBenchmark {
+
+	private static final Logger logger = Logger.getLogger("ExecutorBenchmark");
+
+	@Param({ "fixed", "virtual" })
+	public String mode;
+
+	@Param({ "close", "keepalive" })
+	public String origin;
+
+	@Param({ "50" })
+	public long latency; // millis
+
+	private File dir;
+	private ServerSocket originSocket;
+	private ExecutorService originPool;
+	private int port;
+	private final AtomicLong next = new AtomicLong(); // Makes every URL a miss
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, InterruptedException {
+		if (mode.equals("virtual") && HandlerExecutor.newVirtualThreadExecutor(logger) == null) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM");
+		}
+		originSocket = new ServerSocket();
+		originSocket.bind(new InetSocketAddress(HttpServer.DEFAULT_PORT), 4096);
+		originPool = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "slow-origin");
+			thread.setDaemon(true);
+			return thread;
+		});
+		originPool.execute(this::acceptOrigin);
+
+		dir = Files.createTempDirectory("proxy").toFile();
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		// Enough connections to the origin that only the handlers are a limit
+		String[] args = mode.equals("virtual")
+				? new String[] { String.valueOf(port), dir.getPath(), "--upstream-connections=256", "--virtual" }
+				: new String[] { String.valueOf(port), dir.getPath(), "--upstream-connections=256" };
+		HttpProxyServer server = new HttpProxyServer(args);
+		Thread thread = new Thread(server::service, "proxy");
+		thread.setDaemon(true); // Runs until the fork exits
+		thread.start();
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket(HttpProxyServer.PROXY_HOST, port).close();
+				return;
+			} catch (IOException ex) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IOException("The proxy server did not start on port " + port);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		originSocket.close();
+		originPool.shutdownNow();
+		delete(dir);
+	}
+
+	@Benchmark
+	public int request() throws IOException {
+		HttpClient client = new HttpClient();
+		try {
+			client.connect(HttpProxyServer.PROXY_HOST, port);
+			client.processGetRequest("GET /item-" + next.incrementAndGet() + " HTTP/1.1", false);
+			return client.getStatus();
+		} finally {
+			client.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void acceptOrigin() {
+		while (!originSocket.isClosed()) {
+			try {
+				Socket socket = originSocket.accept();
+				originPool.execute(() -> serveOrigin(socket));
+			} catch (IOException ex) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Answer the requests of a connection, each after the latency.
+	 *
+	 * @param socket
+	 */
+	private void serveOrigin(Socket socket) {
+		boolean keepAlive = origin.equals("keepalive");
+		byte[] response = ("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nCache-Control: no-store\r\n"
+				+ (keepAlive ? "" : "Connection: close\r\n") + "\r\nok").getBytes();
+		try (Socket s = socket) {
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			do {
+				if (!readHead(in)) {
+					return;
+				}
+				Thread.sleep(latency);
+				out.write(response);
+				out.flush();
+			} while (keepAlive);
+		} catch (IOException ex) {
+			// The proxy has gone
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return false if the connection is closed before a request
+	 */
+	private static boolean readHead(InputStream in) throws IOException {
+		int c, last = 0;
+		while ((c = in.read()) != -1) {
+			if (c == '\n' && last == '\n') {
+				return true;
+			}
+			if (c != '\r') {
+				last = c;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,57 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *
+ * Writes the header of a "200 OK" as sendHeader() of the handlers does, with
+ * HeaderWriter, and as it did before with a StringBuilder, for comparison.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeaderBenchmark {
+
+	private static final String CRLF = "\r\n";
+	private static final String PATH = "C:\\proxy\\cache\\images\\logo.png";
+	private static final String[] FIELDS = { "Last-Modified: Sun, 22 Dec 2019 10:00:00 GMT",
+			"ETag: \"1f4c-16f2a1b5e30\"", "Accept-Ranges: bytes" };
+	private final OutputStream out = OutputStream.nullOutputStream();
+	private final HeaderWriter headerWriter = new HeaderWriter();
+
+	@Benchmark
+	public void headerWriter() throws IOException {
+		headerWriter.write(out, "HTTP/1.1 200 OK", HeaderWriter.contentType(PATH), 8012, true, FIELDS);
+	}
+
+	@Benchmark
+	public void stringBuilder() throws IOException {
+		StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 200 OK" + CRLF);
+		response.append("Date: " + new Date().toString() + CRLF);
+		response.append("Server: MyHttpServer/1.0" + CRLF);
+		response.append("Content-Length: " + 8012 + CRLF);
+		response.append("Content-type: " + URLConnection.getFileNameMap().getContentTypeFor(PATH) + CRLF);
+		for (String field : FIELDS) {
+			response.append(field + CRLF);
+		}
+		response.append("Connection: keep-alive" + CRLF + CRLF);
+		byte[] buffer = response.toString().getBytes("ISO-8859-1");
+		out.write(buffer, 0, buffer.length);
+	}
+}
@@ -0,0 +1,49 @@
+package httpproxyservice;
+
+import java.io.InputStream;
+
+/**
+ *
+ * A stream which returns the same message again and again, like a keep-alive
+ * connection carrying the same request or response, so a benchmark reads one
+ * message per invocation without any I/O.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class RepeatingInputStream extends InputStream {
+
+	private final byte[] message;
+	private final int chunk; // The most bytes returned by a read, as a socket would
+	private int pos;
+
+	/**
+	 * @param message The bytes repeated
+	 * @param chunk   The most bytes returned by a read
+	 */
+	public RepeatingInputStream(byte[] message, int chunk) {
+		this.message = message;
+		this.chunk = chunk;
+	}
+
+	@Override
+	public int read() {
+		int b = message[pos] & 0xff;
+		pos = (pos + 1) % message.length;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int n = Math.min(Math.min(len, chunk), message.length - pos);
+		System.arraycopy(message, pos, b, off, n);
+		pos = (pos + n) % message.length;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return message.length - pos;
+	}
+}
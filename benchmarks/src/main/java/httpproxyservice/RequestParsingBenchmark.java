@@ -0,0 +1,60 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ * Reads the head of a request as the handlers do for every request of a
+ * keep-alive connection: HttpMessageReader.readHead(), then the parts the
+ * handler asks for.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParsingBenchmark {
+
+	private static final String REQUEST = "GET /images/logo.png HTTP/1.1\r\n" + "Host: localhost:18090\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:71.0) Gecko/20100101 Firefox/71.0\r\n"
+			+ "Accept: image/webp,*/*\r\n" + "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n" + "Connection: keep-alive\r\n"
+			+ "If-None-Match: \"1f4c-16f2a1b5e30\"\r\n" + "Cache-Control: max-age=0\r\n\r\n";
+	private HttpMessageReader reader;
+
+	@Setup
+	public void setup() {
+		reader = new HttpMessageReader(
+				new RepeatingInputStream(REQUEST.getBytes(StandardCharsets.ISO_8859_1), 1460));
+	}
+
+	@Benchmark
+	public boolean readHead() throws IOException {
+		return reader.readHead();
+	}
+
+	@Benchmark
+	public void readHeadAndFields(Blackhole blackhole) throws IOException {
+		reader.readHead();
+		blackhole.consume(reader.getMethod());
+		blackhole.consume(reader.getUri());
+		blackhole.consume(reader.isRequestVersion("HTTP/1.1"));
+		blackhole.consume(reader.headerContains("Connection", "keep-alive"));
+		blackhole.consume(reader.getHeader("Range"));
+		blackhole.consume(reader.getHeader("If-None-Match"));
+		blackhole.consume(reader.getHeader("Accept-Encoding"));
+	}
+}
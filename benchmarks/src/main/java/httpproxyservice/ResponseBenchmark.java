@@ -0,0 +1,81 @@
+package httpproxyservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ * Receives a response of the origin on a keep-alive connection: with
+ * HttpClient.processResponse(), which collects the content in a String, and
+ * with receiveHeader() and readContent() as the proxy streams it.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseBenchmark {
+
+	@Param({ "1024", "65536" })
+	public int length;
+
+	@Param({ "length", "chunked" })
+	public String framing;
+
+	private HttpClient httpClient;
+	private final byte[] buffer = new byte[8192];
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] content = new byte[length];
+		Arrays.fill(content, (byte) 'x');
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		response.write(("HTTP/1.1 200 OK\r\nDate: Sun, 22 Dec 2019 10:00:00 GMT\r\nServer: MyHttpServer/1.0\r\n"
+				+ "Content-type: text/plain\r\nETag: \"400-16f2a1b5e30\"\r\nConnection: keep-alive\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1));
+		if (framing.equals("chunked")) {
+			response.write("Transfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			try (ChunkedOutputStream chunked = new ChunkedOutputStream(response)) {
+				for (int off = 0; off < length; off += 4096) {
+					chunked.write(content, off, Math.min(4096, length - off));
+				}
+			}
+		} else {
+			response.write(("Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			response.write(content);
+		}
+		httpClient = new HttpClient(new RepeatingInputStream(response.toByteArray(), 16 * 1024),
+				OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public String processResponse() throws IOException {
+		httpClient.processResponse("GET");
+		return httpClient.getContent();
+	}
+
+	@Benchmark
+	public void readContent(Blackhole blackhole) throws IOException {
+		httpClient.receiveHeader();
+		int len;
+		while ((len = httpClient.readContent(buffer)) != -1) {
+			blackhole.consume(len);
+		}
+	}
+}
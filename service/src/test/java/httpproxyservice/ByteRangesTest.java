@@ -0,0 +1,83 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class ByteRangesTest {
+
+	private static List<long[]> parse(String head, long length) throws IOException {
+		HttpMessageReader request = new HttpMessageReader(new ByteArrayInputStream(
+				("GET /a.bin HTTP/1.1\r\n" + head + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+		assertTrue(request.readHead());
+		return ByteRanges.parse(request, length, "\"1\"", -1);
+	}
+
+	@Test
+	public void rangesAreClampedToTheLength() throws IOException {
+		List<long[]> ranges = parse("Range: bytes=0-499\r\n", 1000);
+		assertEquals(1, ranges.size());
+		assertArrayEquals(new long[] { 0, 499 }, ranges.get(0));
+		assertArrayEquals(new long[] { 500, 999 }, parse("Range: bytes=500-\r\n", 1000).get(0));
+		assertArrayEquals(new long[] { 900, 999 }, parse("Range: bytes=900-5000\r\n", 1000).get(0));
+	}
+
+	@Test
+	public void suffixCountsFromTheEnd() throws IOException {
+		assertArrayEquals(new long[] { 800, 999 }, parse("Range: bytes=-200\r\n", 1000).get(0));
+		assertArrayEquals(new long[] { 0, 999 }, parse("Range: bytes=-5000\r\n", 1000).get(0));
+		assertTrue(parse("Range: bytes=-0\r\n", 1000).isEmpty());
+	}
+
+	@Test
+	public void multipleRangesKeepTheirOrder() throws IOException {
+		List<long[]> ranges = parse("Range: bytes=500-599, 0-99,-10\r\n", 1000);
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 500, 599 }, ranges.get(0));
+		assertArrayEquals(new long[] { 0, 99 }, ranges.get(1));
+		assertArrayEquals(new long[] { 990, 999 }, ranges.get(2));
+		// Ranges beyond the end are left out
+		assertEquals(1, parse("Range: bytes=2000-2999,0-9\r\n", 1000).size());
+		assertNull(parse("Range: bytes=" + "0-0,".repeat(17) + "\r\n", 1000));
+	}
+
+	@Test
+	public void unsatisfiableRangesGiveAnEmptyList() throws IOException {
+		assertTrue(parse("Range: bytes=1000-\r\n", 1000).isEmpty());
+		assertTrue(parse("Range: bytes=0-10\r\n", 0).isEmpty());
+		assertTrue(parse("Range: bytes=-10\r\n", 0).isEmpty());
+		assertEquals("Content-Range: bytes */1000", ByteRanges.unsatisfiedRange(1000));
+	}
+
+	@Test
+	public void malformedOrStaleRangesAreIgnored() throws IOException {
+		assertNull(parse("", 1000));
+		assertNull(parse("Range: items=0-9\r\n", 1000));
+		assertNull(parse("Range: bytes=9-0\r\n", 1000));
+		assertNull(parse("Range: bytes=a-b\r\n", 1000));
+		assertNull(parse("Range: bytes=-\r\n", 1000));
+		assertNull(parse("Range: bytes=0-9\r\nIf-Range: \"2\"\r\n", 1000));
+		assertEquals(1, parse("Range: bytes=0-9\r\nIf-Range: \"1\"\r\n", 1000).size());
+	}
+
+	@Test
+	public void contentRangeOfAPartIsParsed() {
+		assertArrayEquals(new long[] { 0, 499, 1234 }, ByteRanges.parseContentRange("bytes 0-499/1234"));
+		assertNull(ByteRanges.parseContentRange("bytes 0-499/*"));
+		assertNull(ByteRanges.parseContentRange("bytes 500-499/1234"));
+		assertNull(ByteRanges.parseContentRange("bytes 0-1234/1234"));
+		assertEquals("Content-Range: bytes 0-499/1234", ByteRanges.contentRange(new long[] { 0, 499 }, 1234));
+	}
+}
@@ -0,0 +1,70 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class CacheEntryTest {
+
+	private static final long NOW = 1576000000000L; // A whole second, as the dates of HTTP
+	private static final long TTL = 3600 * 1000L;
+
+	private static CacheEntry response(String head) throws IOException {
+		HttpClient httpClient = new HttpClient(new ByteArrayInputStream(
+				("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n" + head + "\r\n").getBytes(StandardCharsets.ISO_8859_1)),
+				new ByteArrayOutputStream());
+		httpClient.receiveHeader();
+		return CacheEntry.fromResponse("/a.txt", httpClient, NOW, TTL, 0);
+	}
+
+	private static String date(long millis) {
+		return Validators.formatDate(millis);
+	}
+
+	@Test
+	public void sharedMaxAgeComesFirst() throws IOException {
+		CacheEntry entry = response("Cache-Control: max-age=60, s-maxage=10\r\nExpires: " + date(NOW + 600000)
+				+ "\r\nLast-Modified: " + date(NOW - 1000000000) + "\r\n");
+		assertEquals(NOW + 10000, entry.getExpires());
+	}
+
+	@Test
+	public void maxAgeComesBeforeExpires() throws IOException {
+		CacheEntry entry = response("Cache-Control: max-age=60\r\nExpires: " + date(NOW + 600000) + "\r\n");
+		assertEquals(NOW + 60000, entry.getExpires());
+		// The time spent in other caches is taken off
+		assertEquals(NOW + 55000, response("Cache-Control: max-age=60\r\nAge: 5\r\n").getExpires());
+	}
+
+	@Test
+	public void expiresIsTakenRelativeToDate() throws IOException {
+		// The clock of origin is an hour behind
+		CacheEntry entry = response(
+				"Date: " + date(NOW - TTL) + "\r\nExpires: " + date(NOW - TTL + 100000) + "\r\n");
+		assertEquals(NOW + 100000, entry.getExpires());
+		assertEquals(NOW, response("Expires: 0\r\n").getExpires()); // Malformed, so already expired
+	}
+
+	@Test
+	public void heuristicIsATenthOfTheAgeOfLastModified() throws IOException {
+		assertEquals(NOW + 100000, response("Last-Modified: " + date(NOW - 1000000) + "\r\n").getExpires());
+		// No longer than the default
+		assertEquals(NOW + TTL, response("Last-Modified: " + date(NOW - 1000 * TTL) + "\r\n").getExpires());
+		assertEquals(NOW + TTL, response("").getExpires());
+	}
+
+	@Test
+	public void noCacheIsStaleAtOnce() throws IOException {
+		CacheEntry entry = response("Cache-Control: no-cache, max-age=60\r\n");
+		assertEquals(NOW, entry.getExpires());
+	}
+}
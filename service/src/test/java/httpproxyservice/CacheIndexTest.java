@@ -0,0 +1,149 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class CacheIndexTest {
+
+	private static final Logger logger = Logger.getLogger("CacheIndexTest");
+
+	@TempDir
+	File root;
+
+	private static CacheEntry entry(String url, long length) {
+		return new CacheEntry(url, 200, "\"" + length + "\"", -1, "text/plain", null, 0, Long.MAX_VALUE, length);
+	}
+
+	@Test
+	public void replayKeepsTheLastRecordOfEachObject() throws IOException {
+		File file = new File(root, "cache.idx");
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			index.put(entry("/a.txt", 1));
+			index.put(entry("/b.txt", 2));
+			index.put(entry("/a.txt", 10));
+			assertEquals(2, index.remove("/b.txt"));
+			assertEquals(-1, index.remove("/b.txt"));
+		}
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			assertEquals(1, index.size());
+			assertEquals(10, index.get("/a.txt").getLength());
+			assertEquals("\"10\"", index.get("/a.txt").getEtag());
+			assertNull(index.get("/b.txt"));
+			assertEquals(10, index.getBytes());
+		}
+	}
+
+	@Test
+	public void tornRecordIsTruncated() throws IOException {
+		File file = new File(root, "cache.idx");
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			index.put(entry("/a.txt", 1));
+		}
+		long intact = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(intact);
+			raf.writeInt(100); // A length with only part of its record
+			raf.writeInt(0);
+			raf.write(new byte[10]);
+		}
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			assertEquals(1, index.size());
+			assertEquals(intact, file.length());
+			index.put(entry("/b.txt", 2)); // Appended after the intact records
+		}
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			assertEquals(2, index.size());
+		}
+	}
+
+	@Test
+	public void recordWithWrongChecksumEndsTheReplay() throws IOException {
+		File file = new File(root, "cache.idx");
+		long first;
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			index.put(entry("/a.txt", 1));
+			first = file.length();
+			index.put(entry("/b.txt", 2));
+			index.put(entry("/c.txt", 3));
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(first + 20); // In the content of the second record
+			int b = raf.read();
+			raf.seek(first + 20);
+			raf.write(b ^ 0xff);
+		}
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			assertEquals(1, index.size());
+			assertNull(index.get("/b.txt"));
+			assertNull(index.get("/c.txt"));
+			assertEquals(first, file.length());
+		}
+	}
+
+	@Test
+	public void replayReadsRecordsAcrossWindows() throws IOException {
+		File file = new File(root, "cache.idx");
+		int count = 30000; // Over 2MB of records, more than two of the smallest windows
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			for (int i = 0; i < count; i++) {
+				index.put(entry("/item-" + i, i));
+			}
+		}
+		long size = file.length();
+		assertTrue(size > 2 * (1 << 20));
+		try (CacheIndex index = new CacheIndex(file, logger, 1)) {
+			assertEquals(count, index.size());
+			for (int i = 0; i < count; i += 997) {
+				assertEquals(i, index.get("/item-" + i).getLength());
+			}
+			assertEquals(count - 1, index.get("/item-" + (count - 1)).getLength());
+			assertEquals(size, file.length());
+		}
+	}
+
+	@Test
+	public void compactionKeepsTheLiveEntriesOnly() throws IOException {
+		File file = new File(root, "cache.idx");
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			for (int i = 0; i < 2000; i++) {
+				index.put(entry("/item-" + i % 10, i));
+			}
+			index.remove("/item-0");
+			long before = file.length();
+			index.compactIfNeeded();
+			assertTrue(file.length() < before / 100);
+			index.put(entry("/after.txt", 5)); // Appended to the new file
+		}
+		try (CacheIndex index = new CacheIndex(file, logger)) {
+			assertEquals(10, index.size());
+			assertNull(index.get("/item-0"));
+			assertEquals(1999, index.get("/item-9").getLength());
+			assertEquals(5, index.get("/after.txt").getLength());
+		}
+	}
+
+	@Test
+	public void removeCountsTheVariants() throws IOException {
+		try (CacheIndex index = new CacheIndex(new File(root, "cache.idx"), logger)) {
+			CacheEntry entry = entry("/a.txt", 100);
+			index.put(entry);
+			assertTrue(index.addVariant(entry, "gzip", 30));
+			assertEquals(130, index.getBytes());
+			assertEquals(130, index.remove("/a.txt"));
+			assertEquals(0, index.getBytes());
+		}
+	}
+}
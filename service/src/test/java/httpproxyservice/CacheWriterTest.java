@@ -0,0 +1,84 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class CacheWriterTest {
+
+	private static final Logger logger = Logger.getLogger("CacheWriterTest");
+
+	@TempDir
+	File root;
+
+	private static boolean commit(CacheWriter.Fill fill) throws Exception {
+		CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+		fill.commit(done::complete);
+		return done.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void commitPublishesTheFile() throws Exception {
+		CacheWriter writer = new CacheWriter(root, 1 << 20, 0, logger);
+		File target = new File(root, "index.html");
+		byte[] content = "hello".getBytes(StandardCharsets.ISO_8859_1);
+		CacheWriter.Fill fill = writer.begin(target);
+		assertTrue(fill.write(content, 0, content.length));
+		assertTrue(commit(fill));
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertEquals(1, writer.getPublished());
+	}
+
+	@Test
+	public void failedCommitStillCallsDone() throws Exception {
+		CacheWriter writer = new CacheWriter(root, 1 << 20, 0, logger);
+		// A directory which is not empty can not be replaced by the cache file
+		File target = new File(root, "index.html");
+		assertTrue(new File(target, "child").mkdirs());
+		byte[] content = "hello".getBytes(StandardCharsets.ISO_8859_1);
+		CacheWriter.Fill fill = writer.begin(target);
+		assertTrue(fill.write(content, 0, content.length));
+		assertFalse(commit(fill));
+		assertEquals(0, writer.getPublished());
+		assertEquals(1, root.listFiles().length, "The temp file is deleted");
+
+		// The writer goes on with the next fill
+		File other = new File(root, "other.html");
+		CacheWriter.Fill next = writer.begin(other);
+		assertTrue(next.write(content, 0, content.length));
+		assertTrue(commit(next));
+	}
+
+	@Test
+	public void commitAfterAbortIsNotPublished() throws Exception {
+		CacheWriter writer = new CacheWriter(root, 1 << 20, 0, logger);
+		CacheWriter.Fill fill = writer.begin(new File(root, "index.html"));
+		fill.abort();
+		assertFalse(commit(fill));
+	}
+
+	@Test
+	public void throwingCallbackDoesNotStopTheWriter() throws Exception {
+		CacheWriter writer = new CacheWriter(root, 1 << 20, 0, logger);
+		CacheWriter.Fill fill = writer.begin(new File(root, "a.html"));
+		fill.commit(published -> {
+			throw new IllegalStateException("landing failed");
+		});
+		assertTrue(commit(writer.begin(new File(root, "b.html"))));
+	}
+}
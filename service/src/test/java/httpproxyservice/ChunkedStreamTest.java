@@ -0,0 +1,99 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class ChunkedStreamTest {
+
+	private static HttpMessageReader reader(byte[] bytes) {
+		return new HttpMessageReader(new ByteArrayInputStream(bytes));
+	}
+
+	private static HttpMessageReader reader(String message) {
+		return reader(message.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7]; // Smaller than the chunks
+		int len;
+		while ((len = in.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void encodedContentIsDecodedAndTheNextMessageKept() throws IOException {
+		byte[] content = new byte[5000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ChunkedOutputStream out = new ChunkedOutputStream(encoded);
+		out.write(content, 0, 4096);
+		out.write(content, 4096, 0); // Does not end the content
+		out.write(content, 4096, content.length - 4096);
+		out.close();
+		encoded.write("GET /next.txt HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		HttpMessageReader reader = reader(encoded.toByteArray());
+		ChunkedInputStream in = new ChunkedInputStream(reader);
+		assertArrayEquals(content, readAll(in));
+		assertTrue(in.isComplete());
+		assertEquals(-1, in.read());
+		assertTrue(reader.readHead());
+		assertEquals("/next.txt", reader.getUri());
+	}
+
+	@Test
+	public void extensionsAndTrailerAreSkipped() throws IOException {
+		ChunkedInputStream in = new ChunkedInputStream(
+				reader("5;name=value\r\nhello\r\n1\r\n!\r\n0\r\nX-Checksum: 1\r\n\r\n"));
+		assertEquals("hello!", new String(readAll(in), StandardCharsets.ISO_8859_1));
+		assertTrue(in.isComplete());
+	}
+
+	@Test
+	public void closedContentIsNotComplete() throws IOException {
+		ChunkedInputStream in = new ChunkedInputStream(reader("a\r\nhello"));
+		assertEquals("hello", new String(readAll(in), StandardCharsets.ISO_8859_1));
+		assertFalse(in.isComplete());
+		ChunkedInputStream noTrailer = new ChunkedInputStream(reader("2\r\nhi\r\n0\r\n"));
+		assertEquals("hi", new String(readAll(noTrailer), StandardCharsets.ISO_8859_1));
+		assertFalse(noTrailer.isComplete());
+	}
+
+	@Test
+	public void malformedChunksAreErrors() {
+		assertThrows(IOException.class, () -> readAll(new ChunkedInputStream(reader("zz\r\nhello\r\n0\r\n\r\n"))));
+		assertThrows(IOException.class, () -> readAll(new ChunkedInputStream(reader("-5\r\nhello\r\n0\r\n\r\n"))));
+		// The chunk is longer than its size
+		assertThrows(IOException.class, () -> readAll(new ChunkedInputStream(reader("3\r\nhello\r\n0\r\n\r\n"))));
+	}
+
+	@Test
+	public void finishedContentTakesNoMoreChunks() throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		ChunkedOutputStream out = new ChunkedOutputStream(encoded);
+		out.write('a');
+		out.finish();
+		out.finish();
+		assertEquals("1\r\na\r\n0\r\n\r\n", encoded.toString("ISO-8859-1"));
+		assertThrows(IOException.class, () -> out.write('b'));
+	}
+}
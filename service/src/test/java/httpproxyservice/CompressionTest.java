@@ -0,0 +1,137 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class CompressionTest {
+
+	@TempDir
+	File root;
+
+	private static String negotiate(String accept) throws IOException {
+		String head = "GET /doc.txt HTTP/1.1\r\nHost: localhost\r\n"
+				+ (accept != null ? "Accept-Encoding: " + accept + "\r\n" : "") + "\r\n";
+		HttpMessageReader request = new HttpMessageReader(
+				new ByteArrayInputStream(head.getBytes(StandardCharsets.ISO_8859_1)));
+		assertTrue(request.readHead());
+		return Compression.negotiate(request);
+	}
+
+	@Test
+	public void negotiatesListedCodings() throws IOException {
+		assertNull(negotiate(null));
+		assertNull(negotiate("identity"));
+		assertEquals("gzip", negotiate("gzip, deflate"));
+		assertEquals("gzip", negotiate("x-gzip"));
+		assertEquals("deflate", negotiate("deflate"));
+		assertEquals("deflate", negotiate("gzip;q=0.5, deflate"));
+		assertNull(negotiate("gzip;q=0"));
+	}
+
+	@Test
+	public void wildcardStandsForEveryCodingNotListed() throws IOException {
+		assertEquals("gzip", negotiate("*"));
+		assertEquals("gzip", negotiate("*;q=1"));
+		assertEquals("gzip", negotiate("deflate;q=0, *"));
+		assertEquals("deflate", negotiate("gzip;q=0, *"));
+		assertEquals("deflate", negotiate("*;q=0.5, deflate"));
+		assertNull(negotiate("*;q=0"));
+		assertNull(negotiate("gzip;q=0, deflate;q=0, *"));
+	}
+
+	private static File await(File file, File variant, String version) throws InterruptedException {
+		File made = null;
+		for (int i = 0; i < 500 && made == null; i++) {
+			Thread.sleep(10);
+			made = Compression.variant(file, variant, "gzip", version);
+		}
+		return made;
+	}
+
+	@Test
+	public void variantIsMadeInTheBackground() throws Exception {
+		File file = new File(root, "doc.txt");
+		byte[] content = new byte[64 * 1024];
+		Arrays.fill(content, (byte) 'a');
+		Files.write(file.toPath(), content);
+		File variant = new File(root, "doc.txt.gz");
+		assertNull(Compression.variant(file, variant, "gzip", "v1"), "The identity is sent meanwhile");
+		File made = await(file, variant, "v1");
+		assertNotNull(made);
+		assertTrue(made.length() < content.length);
+		assertEquals(2, root.listFiles().length, "No temp file is left");
+	}
+
+	@Test
+	public void variantOfAnotherVersionIsMadeAgain() throws Exception {
+		File file = new File(root, "doc.txt");
+		File variant = new File(root, "doc.txt.gz");
+		byte[] content = new byte[64 * 1024];
+		Arrays.fill(content, (byte) 'a');
+		Files.write(file.toPath(), content);
+		Compression.variant(file, variant, "gzip", "v1");
+		assertNotNull(await(file, variant, "v1"));
+
+		// Replaced within the same second, only the version tells them apart
+		Arrays.fill(content, (byte) 'b');
+		Files.write(file.toPath(), content);
+		assertNull(Compression.variant(file, variant, "gzip", "v2"));
+		File made = await(file, variant, "v2");
+		assertNotNull(made);
+		try (InputStream in = new GZIPInputStream(new FileInputStream(made))) {
+			assertEquals('b', in.read());
+		}
+	}
+
+	@Test
+	public void variantOfAReplacedEntryIsDropped() throws Exception {
+		CacheIndex cacheIndex = new CacheIndex(new File(root, "index"), Logger.getLogger("CompressionTest"));
+		CacheEntry old = new CacheEntry("/doc.txt", 200, "\"1\"", -1, "text/plain", null, 0, 0, 1000);
+		cacheIndex.put(old);
+		assertTrue(cacheIndex.addVariant(old, "gzip", 100));
+		assertEquals(100, cacheIndex.getVariant("/doc.txt", "gzip"));
+		assertEquals(1100, cacheIndex.getBytes());
+
+		CacheEntry refetched = new CacheEntry("/doc.txt", 200, "\"1\"", -1, "text/plain", null, 0, 0, 1000);
+		cacheIndex.put(refetched);
+		cacheIndex.clearVariants("/doc.txt");
+		assertEquals(-1, cacheIndex.getVariant("/doc.txt", "gzip"));
+		assertFalse(cacheIndex.addVariant(old, "gzip", 100), "Made of the file replaced");
+		assertTrue(cacheIndex.addVariant(refetched, "deflate", 200));
+		assertEquals(1200, cacheIndex.getBytes());
+
+		cacheIndex.remove("/doc.txt");
+		assertEquals(0, cacheIndex.getBytes());
+		cacheIndex.close();
+	}
+
+	@Test
+	public void smallFilesAreNotCompressed() throws Exception {
+		File file = new File(root, "small.txt");
+		Files.write(file.toPath(), new byte[100]);
+		assertNull(Compression.variant(file, new File(root, "small.txt.gz"), "gzip", "v1"));
+		Thread.sleep(100);
+		assertEquals(1, root.listFiles().length);
+	}
+}
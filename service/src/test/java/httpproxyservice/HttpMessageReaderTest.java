@@ -0,0 +1,46 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class HttpMessageReaderTest {
+
+	private static HttpMessageReader reader(String messages) {
+		return new HttpMessageReader(new ByteArrayInputStream(messages.getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	@Test
+	public void peekRequestsPassesOverRanges() throws IOException {
+		HttpMessageReader request = reader("GET /a.txt HTTP/1.1\r\n\r\n"
+				+ "GET /b.txt HTTP/1.1\r\nHost: localhost\r\n\r\n"
+				+ "GET /c.bin HTTP/1.1\r\nrange: bytes=0-9\r\n\r\n"
+				+ "GET /d.txt HTTP/1.1\r\nX-Range: none\r\n\r\n");
+		assertTrue(request.readHead());
+		List<String> uris = new ArrayList<String>();
+		request.peekRequests(uris, 8);
+		assertEquals(Arrays.asList("/b.txt", "/d.txt"), uris);
+	}
+
+	@Test
+	public void peekRequestsStopsAtOtherMethods() throws IOException {
+		HttpMessageReader request = reader("GET /a.txt HTTP/1.1\r\n\r\n"
+				+ "PUT /b.txt HTTP/1.1\r\nContent-Length: 0\r\n\r\n" + "GET /c.txt HTTP/1.1\r\n\r\n");
+		assertTrue(request.readHead());
+		List<String> uris = new ArrayList<String>();
+		request.peekRequests(uris, 8);
+		assertEquals(0, uris.size());
+	}
+}
@@ -0,0 +1,73 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallValuesHaveABucketEach() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 32; i++) {
+			histogram.record(i);
+		}
+		assertEquals(0, histogram.quantile(0));
+		assertEquals(15, histogram.quantile(0.5));
+		assertEquals(30, histogram.quantile(0.95));
+		assertEquals(31, histogram.quantile(1));
+	}
+
+	@Test
+	public void quantileIsOffByLessThanASixteenth() {
+		long[] values = { 32, 33, 47, 63, 64, 67, 68, 100, 127, 128, 1000, 4095, 4096, 123456, 1L << 40,
+				(1L << 40) + 12345 };
+		for (long value : values) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+			histogram.record(value * 100); // So the maximum does not bound the quantile
+			long quantile = histogram.quantile(0.5);
+			assertTrue(quantile >= value, value + " reported as " + quantile);
+			assertTrue(quantile - value < value / 16 + 1, value + " reported as " + quantile);
+		}
+	}
+
+	@Test
+	public void bucketsEndAtTheirBounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(64);
+		histogram.record(1000000);
+		assertEquals(67, histogram.quantile(0.5)); // 64 to 67 share a bucket
+		LatencyHistogram next = new LatencyHistogram();
+		next.record(68);
+		next.record(1000000);
+		assertEquals(71, next.quantile(0.5));
+	}
+
+	@Test
+	public void quantileIsNotAboveTheMaximum() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		assertEquals(1000, histogram.quantile(0.99));
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.quantile(1));
+	}
+
+	@Test
+	public void totalsAreKept() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.quantile(0.5));
+		histogram.record(-5); // Counted as 0
+		histogram.record(10);
+		histogram.record(20);
+		assertEquals(3, histogram.getCount());
+		assertEquals(30, histogram.getSum());
+		assertEquals(20, histogram.getMax());
+		assertEquals(0, histogram.quantile(0.1));
+	}
+}
@@ -0,0 +1,53 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class MemoryCacheTest {
+
+	private static void request(MemoryCache cache, String url, int times) {
+		for (int i = 0; i < times; i++) {
+			cache.get(url);
+		}
+	}
+
+	@Test
+	public void wouldAdmitWhileThereIsRoom() {
+		MemoryCache cache = new MemoryCache(8192, 4096);
+		assertTrue(cache.wouldAdmit("/a", 4096));
+		assertFalse(cache.wouldAdmit("/big", 4097), "Larger than an object may be");
+		assertFalse(cache.wouldAdmit("/unknown", -1));
+	}
+
+	@Test
+	public void wouldAdmitAgreesWithPut() {
+		MemoryCache cache = new MemoryCache(8192, 4096);
+		request(cache, "/hot1", 3);
+		request(cache, "/hot2", 3);
+		cache.put("/hot1", ByteBuffer.allocate(4096), "text/plain");
+		cache.put("/hot2", ByteBuffer.allocate(4096), "text/plain");
+
+		// Requested once, it would evict hotter objects
+		request(cache, "/once", 1);
+		assertFalse(cache.wouldAdmit("/once", 4096));
+		assertEquals(1, cache.getRejections());
+
+		request(cache, "/popular", 5);
+		assertTrue(cache.wouldAdmit("/popular", 4096));
+		cache.put("/popular", ByteBuffer.allocate(4096), "text/plain");
+		assertNotNull(cache.peek("/popular"));
+
+		// A cached object may always be replaced by its new version
+		assertTrue(cache.wouldAdmit("/hot2", 4096));
+	}
+}
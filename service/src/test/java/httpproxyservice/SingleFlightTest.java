@@ -0,0 +1,55 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class SingleFlightTest {
+
+	@Test
+	public void sameThreadJoiningAgainIsAFollower() {
+		SingleFlight singleFlight = new SingleFlight();
+		SingleFlight.Flight leader = singleFlight.join("/index.html");
+		SingleFlight.Flight again = singleFlight.join("/index.html");
+		assertTrue(leader.isLeader());
+		assertFalse(again.isLeader());
+		assertThrows(IllegalStateException.class, () -> singleFlight.land(again, true));
+	}
+
+	@Test
+	public void landingOnAnotherThreadReleasesTheFollowers() throws Exception {
+		SingleFlight singleFlight = new SingleFlight();
+		SingleFlight.Flight leader = singleFlight.join("/index.html");
+		SingleFlight.Flight follower = singleFlight.join("/index.html");
+		Thread writer = new Thread(() -> singleFlight.land(leader, true));
+		writer.start();
+		assertTrue(follower.await(5000));
+		writer.join();
+		assertEquals(0, singleFlight.size());
+		assertTrue(singleFlight.join("/index.html").isLeader());
+	}
+
+	@Test
+	public void invalidatedFetchDoesNotPublish() {
+		SingleFlight singleFlight = new SingleFlight();
+		SingleFlight.Flight leader = singleFlight.join("/index.html");
+		singleFlight.invalidate("/other.html");
+		assertTrue(leader.publish(() -> true));
+		singleFlight.invalidate("/index.html");
+		assertTrue(leader.isInvalidated());
+		assertFalse(leader.publish(() -> {
+			throw new AssertionError("Published after the object was invalidated");
+		}));
+		singleFlight.land(leader, false);
+		SingleFlight.Flight next = singleFlight.join("/index.html");
+		assertFalse(next.isInvalidated()); // A fetch started afterwards gets the new content
+		assertTrue(next.publish(() -> true));
+	}
+}
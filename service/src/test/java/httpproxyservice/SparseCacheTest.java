@@ -0,0 +1,84 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class SparseCacheTest {
+
+	@TempDir
+	File root;
+
+	private static CacheEntry entry(String url, long length) {
+		return new CacheEntry(url, 200, "\"1\"", -1, null, null, 0, Long.MAX_VALUE, length);
+	}
+
+	private SparseCache.SparseFile open(SparseCache sparseCache, String url, long length) throws IOException {
+		return sparseCache.open(url, new File(root, url.substring(1) + ".sparse"), entry(url, length));
+	}
+
+	@Test
+	public void objectLongerThanTheBudgetDropsNothing() throws IOException {
+		SparseCache sparseCache = new SparseCache(8, 1000);
+		SparseCache.SparseFile small = open(sparseCache, "/a.bin", 400);
+		assertNull(open(sparseCache, "/large.bin", 1001));
+		assertSame(small, sparseCache.get("/a.bin"));
+		assertNull(sparseCache.get("/large.bin"));
+		assertEquals(400, sparseCache.getBytes());
+		assertTrue(small.acquire());
+		small.release();
+	}
+
+	@Test
+	public void eldestFilesAreDroppedOverTheBudget() throws IOException {
+		SparseCache sparseCache = new SparseCache(8, 1000);
+		open(sparseCache, "/a.bin", 400);
+		open(sparseCache, "/b.bin", 400);
+		assertNotNull(open(sparseCache, "/c.bin", 400));
+		assertNull(sparseCache.get("/a.bin"));
+		assertEquals(2, sparseCache.size());
+		assertEquals(800, sparseCache.getBytes());
+	}
+
+	private static String gaps(SparseCache.SparseFile sparse, long first, long last) {
+		StringBuilder gaps = new StringBuilder();
+		for (long[] gap : sparse.gaps(first, last)) {
+			gaps.append(gaps.length() > 0 ? "," : "").append(gap[0]).append('-').append(gap[1]);
+		}
+		return gaps.toString();
+	}
+
+	@Test
+	public void writtenRangesAreMergedAndLeaveGaps() throws IOException {
+		SparseCache sparseCache = new SparseCache(8, 1000);
+		SparseCache.SparseFile sparse = open(sparseCache, "/a.bin", 100);
+		byte[] part = new byte[10];
+		assertEquals("0-99", gaps(sparse, 0, 99));
+		sparse.write(10, part, 0, 10);
+		sparse.write(30, part, 0, 10);
+		assertEquals("0-9,20-29,40-99", gaps(sparse, 0, 99));
+		assertEquals("20-29", gaps(sparse, 15, 35));
+		assertEquals("", gaps(sparse, 12, 18));
+		sparse.write(20, part, 0, 10); // Adjacent on both sides
+		assertEquals("", gaps(sparse, 10, 39));
+		sparse.write(5, part, 0, 10); // Overlapping the start
+		assertEquals("0-4,40-99", gaps(sparse, 0, 99));
+		assertFalse(sparse.isComplete());
+		sparse.write(0, new byte[100], 0, 100);
+		assertEquals("", gaps(sparse, 0, 99));
+		assertTrue(sparse.isComplete());
+	}
+}
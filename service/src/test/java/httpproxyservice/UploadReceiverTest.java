@@ -0,0 +1,48 @@
+package httpproxyservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Li Taiji
+ * @date 2019-12-22
+ */
+public class UploadReceiverTest {
+
+	private static HttpMessageReader request(String head, String content) throws IOException {
+		HttpMessageReader request = new HttpMessageReader(new ByteArrayInputStream(
+				("PUT /up.txt HTTP/1.1\r\n" + head + "\r\n" + content).getBytes(StandardCharsets.ISO_8859_1)));
+		assertTrue(request.readHead());
+		return request;
+	}
+
+	@Test
+	public void malformedLengthIsNotTakenAsEmpty() throws IOException {
+		assertEquals(-1, UploadReceiver.getLength(request("Content-Length: abc\r\n", "")));
+		assertEquals(-1, UploadReceiver.getLength(request("Content-Length: 1234567890123456789\r\n", "")));
+		assertEquals(-1, UploadReceiver.getLength(request("Content-Length: \r\n", "")));
+		assertFalse(UploadReceiver.hasValidLength(request("Content-Length: -5\r\n", "")));
+		assertThrows(IOException.class, () -> UploadReceiver
+				.transfer(request("Content-Length: abc\r\n", "GET / HTTP/1.1\r\n\r\n"), new ByteArrayOutputStream()));
+	}
+
+	@Test
+	public void validFramingIsAccepted() throws IOException {
+		assertEquals(0, UploadReceiver.getLength(request("", "")));
+		assertTrue(UploadReceiver.hasValidLength(request("Transfer-Encoding: chunked\r\n", "")));
+		HttpMessageReader request = request("Content-Length: 5\r\n", "helloGET / HTTP/1.1\r\n\r\n");
+		assertTrue(UploadReceiver.hasValidLength(request));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(5, UploadReceiver.transfer(request, out));
+		assertEquals("hello", out.toString("ISO-8859-1"));
+	}
+}
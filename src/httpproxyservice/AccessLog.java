@@ -0,0 +1,224 @@
+package httpproxyservice;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The log of requests answered. A handler puts the fields of a request into
+ * the next slot of a ring and goes on, it takes no lock and never waits: if
+ * the ring is full the record is dropped and counted. A single thread takes
+ * the records in order and writes them as lines of tab separated fields to a
+ * file, which is rotated when it reaches a size:
+ *
+ * time remote method uri status bytes micros
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class AccessLog {
+
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10); // The sleep of the writer when idle
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(); // The sequence of the next slot claimed
+	private volatile long tail; // The sequence of the next slot written, only set by the writer
+	private final File file;
+	private final long limit; // The size of a file before it is rotated
+	private final int count; // The old files kept
+	private final Logger logger;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private Writer writer;
+	private long size; // The bytes written to the current file
+	private boolean failing; // Whether the last record could not be written
+
+	/**
+	 * @param file     The log file
+	 * @param capacity The records waiting at most, rounded up to a power of 2
+	 * @param limit    The size of a file before it is rotated
+	 * @param count    The old files kept, named file.1, file.2, ...
+	 * @param logger   Log file of server
+	 */
+	public AccessLog(File file, int capacity, long limit, int count, Logger logger) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.file = file;
+		this.limit = limit;
+		this.count = count;
+		this.logger = logger;
+		Thread thread = new Thread(this::run, "access-log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Record a request, on the thread of handler.
+	 *
+	 * @param start  The time the request was read, in millis
+	 * @param remote The address of client
+	 * @param port   The port of client
+	 * @param method
+	 * @param uri
+	 * @param status The status of response, 0 if none was sent
+	 * @param bytes  The length of content, -1 if unknown
+	 * @param micros The time taken to answer
+	 */
+	public void log(long start, String remote, int port, String method, String uri, int status, long bytes,
+			long micros) {
+		long sequence;
+		do {
+			sequence = head.get();
+			if (sequence - tail >= slots.length) {
+				dropped.increment(); // The writer is behind
+				return;
+			}
+		} while (!head.compareAndSet(sequence, sequence + 1));
+		Slot slot = slots[(int) sequence & mask];
+		slot.start = start;
+		slot.remote = remote;
+		slot.port = port;
+		slot.method = method;
+		slot.uri = uri;
+		slot.status = status;
+		slot.bytes = bytes;
+		slot.micros = micros;
+		slot.sequence = sequence; // Publishes the fields
+	}
+
+	/**
+	 * Write the records, on the writer thread.
+	 */
+	private void run() {
+		StringBuilder line = new StringBuilder(256);
+		long next = 0;
+		while (true) {
+			Slot slot = slots[(int) next & mask];
+			if (slot.sequence != next) {
+				flush();
+				LockSupport.parkNanos(IDLE_WAIT);
+				continue;
+			}
+			line.setLength(0);
+			DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.start), line);
+			line.append('\t').append(slot.remote).append(':').append(slot.port);
+			line.append('\t').append(slot.method).append('\t').append(slot.uri);
+			line.append('\t').append(slot.status).append('\t').append(slot.bytes);
+			line.append('\t').append(slot.micros).append('\n');
+			slot.remote = null;
+			slot.uri = null;
+			tail = ++next; // The slot may be claimed again
+			write(line);
+		}
+	}
+
+	private void write(CharSequence line) {
+		try {
+			if (writer == null || size >= limit) {
+				rotate();
+			}
+			writer.append(line);
+			size += line.length();
+			written.increment();
+			failing = false;
+		} catch (IOException ex) {
+			dropped.increment();
+			if (!failing) {
+				logger.log(Level.WARNING, "Can not write access log " + file, ex);
+				failing = true;
+			}
+			close();
+		}
+	}
+
+	/**
+	 * Close the current file, if any, shift the old files and open a new one.
+	 */
+	private void rotate() throws IOException {
+		if (writer != null) {
+			close();
+			for (int i = count; i > 0; i--) {
+				File older = new File(file.getPath() + "." + i);
+				File newer = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+				older.delete();
+				newer.renameTo(older);
+			}
+			if (count == 0) {
+				file.delete();
+			}
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs(); // If the directory does not exist, it will be created.
+		}
+		size = file.length();
+		writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.ISO_8859_1), 64 * 1024);
+	}
+
+	private void flush() {
+		if (writer != null) {
+			try {
+				writer.flush();
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Can not write access log " + file, ex);
+				close();
+			}
+		}
+	}
+
+	private void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException ex) {
+			// The records are lost anyway
+		}
+		writer = null;
+	}
+
+	public long getWritten() {
+		return written.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * A record of the ring. Its fields are written by the handler which claimed
+	 * it before the sequence, and read by the writer after it.
+	 */
+	private static final class Slot {
+
+		private volatile long sequence = -1;
+		private long start;
+		private String remote;
+		private int port;
+		private String method;
+		private String uri;
+		private int status;
+		private long bytes;
+		private long micros;
+	}
+}
@@ -0,0 +1,215 @@
+package httpproxyservice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * The byte ranges of a representation asked for with "Range", and the framing
+ * of the response: "206 Partial Content" with "Content-Range" for one range,
+ * or a "multipart/byteranges" content for several. A range request the server
+ * does not want to honour, e.g. with a stale "If-Range", is answered with the
+ * whole representation.
+ *
+ * @author Li Taiji
+ * @date 2019-12-21
+ *
+ */
+public class ByteRanges {
+
+	private static final String CRLF = "\r\n";
+	private static final int MAX_RANGES = 16; // More ranges are answered with the whole representation
+
+	private ByteRanges() {
+	}
+
+	/**
+	 * Work out the ranges of a GET request.
+	 *
+	 * @param request      The request, after its head has been read
+	 * @param length       The length of representation
+	 * @param etag         The entity tag of representation, or null
+	 * @param lastModified The modification time in millis, or -1
+	 * @return The first and last byte of each range in the order asked, an empty
+	 *         list if none of them can be satisfied, or null if the whole
+	 *         representation is sent
+	 */
+	public static List<long[]> parse(HttpMessageReader request, long length, String etag, long lastModified) {
+		String range = request.getHeader("Range");
+		if (range == null || !isCurrent(request.getHeader("If-Range"), etag, lastModified)) {
+			return null;
+		}
+		range = range.trim();
+		if (!range.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null; // Only byte ranges are known
+		}
+		String[] specs = range.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<long[]> ranges = new ArrayList<long[]>(specs.length);
+		for (String spec : specs) {
+			long[] bounds = parseSpec(spec.trim());
+			if (bounds == null) {
+				return null; // A malformed range is ignored with the header
+			}
+			long first = bounds[0];
+			long last = bounds[1];
+			if (first < 0) {
+				// A suffix of the representation
+				if (last == 0 || length == 0) {
+					continue;
+				}
+				first = Math.max(0, length - last);
+				last = length - 1;
+			} else if (first >= length) {
+				continue; // Beyond the end, can not be satisfied
+			} else if (last < 0 || last >= length) {
+				last = length - 1;
+			}
+			ranges.add(new long[] { first, last });
+		}
+		return ranges;
+	}
+
+	/**
+	 * @param spec A range, e.g. "0-499", "500-" or "-500"
+	 * @return The first and last byte, the first is -1 for a suffix of the given
+	 *         length, the last is -1 for a range up to the end; or null if it is
+	 *         malformed
+	 */
+	private static long[] parseSpec(String spec) {
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				return last.isEmpty() ? null : new long[] { -1, Long.parseLong(last) };
+			}
+			long[] bounds = { Long.parseLong(first), last.isEmpty() ? -1 : Long.parseLong(last) };
+			if (bounds[0] < 0 || (bounds[1] >= 0 && bounds[1] < bounds[0])) {
+				return null;
+			}
+			return bounds;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Check "If-Range", which asks for the ranges only if the representation is
+	 * still the one the client has parts of. An entity tag must match strongly,
+	 * a date exactly.
+	 *
+	 * @param ifRange      The value of "If-Range", or null
+	 * @param etag         The entity tag of representation, or null
+	 * @param lastModified The modification time in millis, or -1
+	 * @return true if the ranges are sent
+	 */
+	private static boolean isCurrent(String ifRange, String etag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+		}
+		long date = Validators.parseDate(ifRange);
+		return date >= 0 && lastModified >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	/**
+	 * @param range  The first and last byte
+	 * @param length The length of representation
+	 * @return The attribute "Content-Range" of a part
+	 */
+	public static String contentRange(long[] range, long length) {
+		return "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+
+	/**
+	 * @param length The length of representation
+	 * @return The attribute "Content-Range" of a "416 Range Not Satisfiable"
+	 */
+	public static String unsatisfiedRange(long length) {
+		return "Content-Range: bytes */" + length;
+	}
+
+	/**
+	 * Parse the "Content-Range" of a "206 Partial Content" with one part.
+	 *
+	 * @param value The value of attribute, e.g. "bytes 0-499/1234"
+	 * @return The first byte, the last byte and the length of representation, or
+	 *         null if it is malformed or the length is unknown
+	 */
+	public static long[] parseContentRange(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		int dash = value.indexOf('-');
+		int slash = value.indexOf('/');
+		if (!value.regionMatches(true, 0, "bytes ", 0, 6) || dash == -1 || slash < dash) {
+			return null;
+		}
+		try {
+			long[] range = { Long.parseLong(value.substring(6, dash).trim()),
+					Long.parseLong(value.substring(dash + 1, slash).trim()),
+					Long.parseLong(value.substring(slash + 1).trim()) };
+			return range[0] <= range[1] && range[1] < range[2] ? range : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return A boundary of multipart content, unlikely to appear in the parts
+	 */
+	public static String boundary() {
+		return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param boundary The boundary of parts
+	 * @return The attribute "Content-type" of a multipart content
+	 */
+	public static String multipartType(String boundary) {
+		return "multipart/byteranges; boundary=" + boundary;
+	}
+
+	/**
+	 * @param boundary    The boundary of parts
+	 * @param contentType The type of representation
+	 * @param range       The first and last byte of part
+	 * @param length      The length of representation
+	 * @return The delimiter and the header sent before a part
+	 */
+	public static byte[] partHeader(String boundary, String contentType, long[] range, long length) {
+		return (CRLF + "--" + boundary + CRLF + "Content-Type: " + contentType + CRLF + contentRange(range, length)
+				+ CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param boundary The boundary of parts
+	 * @return The delimiter sent after the last part
+	 */
+	public static byte[] closing(String boundary) {
+		return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return The length of the multipart content of the ranges
+	 */
+	public static long multipartLength(String boundary, String contentType, List<long[]> ranges, long length) {
+		long total = closing(boundary).length;
+		for (long[] range : ranges) {
+			total += partHeader(boundary, contentType, range, length).length + range[1] - range[0] + 1;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,334 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * What the proxy knows about a cached object besides its content: the status
+ * and type of response, the validators given by the origin, the time it was
+ * fetched or last revalidated and the time it expires. The expiry follows the
+ * rules of a shared cache: "s-maxage", then "max-age", then "Expires", and
+ * otherwise a part of the time since the object was last modified, at most the
+ * default lifetime. "no-cache" makes an object stale at once, "no-store" and
+ * "private" keep it out of the cache. Entries are kept in the CacheIndex and
+ * are immutable, a revalidation makes a new one.
+ *
+ * @author Li Taiji
+ * @date 2019-12-15
+ *
+ */
+public class CacheEntry {
+
+	private static final long MAX_HEURISTIC = 24L * 60 * 60 * 1000; // millis
+	private final String url;
+	private final int status;
+	private final String etag; // null if the origin gave none
+	private final long lastModified; // millis, -1 if the origin gave none
+	private final String contentType; // null if the origin gave none
+	private final String cacheControl; // The directives of origin, null if it gave none
+	private final long fetched; // millis, when the origin last sent or confirmed the content
+	private final long expires; // millis, when the object becomes stale
+	private final long length; // The bytes of content
+
+	/**
+	 * @param url          The URL of request
+	 * @param status       The status code of response
+	 * @param etag         The entity tag, or null
+	 * @param lastModified The modification time in millis, or -1
+	 * @param contentType  The type of content, or null
+	 * @param cacheControl The directives of origin, or null
+	 * @param fetched      The time of fetch or revalidation in millis
+	 * @param expires      The time the object becomes stale in millis
+	 * @param length       The bytes of content
+	 */
+	public CacheEntry(String url, int status, String etag, long lastModified, String contentType,
+			String cacheControl, long fetched, long expires, long length) {
+		this.url = url;
+		this.status = status;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.contentType = contentType;
+		this.cacheControl = cacheControl;
+		this.fetched = fetched;
+		this.expires = expires;
+		this.length = length;
+	}
+
+	/**
+	 * Whether a shared cache may keep the response.
+	 *
+	 * @param httpClient The connection to origin, after receiveHeader()
+	 * @return true if the response, or the part of object it has, may be
+	 *         cached
+	 */
+	public static boolean isStorable(HttpClient httpClient) {
+		String directives = httpClient.getHeaderField("Cache-Control");
+		int status = httpClient.getStatus();
+		return (status == 200 || status == 206) && !hasDirective(directives, "no-store")
+				&& !hasDirective(directives, "private");
+	}
+
+	/**
+	 * Make the entry of an object just received from the origin.
+	 *
+	 * @param url        The URL of request
+	 * @param httpClient The connection to origin, after receiveHeader()
+	 * @param now        The time of response in millis
+	 * @param defaultTtl The most millis an object without explicit expiry is
+	 *                   fresh
+	 * @param length     The bytes of content received, or of the whole object for
+	 *                   a part
+	 * @return entry
+	 */
+	public static CacheEntry fromResponse(String url, HttpClient httpClient, long now, long defaultTtl,
+			long length) {
+		long lastModified = Validators.parseDate(httpClient.getHeaderField("Last-Modified"));
+		String directives = httpClient.getHeaderField("Cache-Control");
+		long fetched = now - age(httpClient);
+		// A part is kept as a part of the whole object
+		int status = httpClient.getStatus() == 206 ? 200 : httpClient.getStatus();
+		return new CacheEntry(url, status, httpClient.getHeaderField("ETag"), lastModified,
+				httpClient.getHeaderField("Content-type"), directives, fetched,
+				expiry(httpClient, directives, fetched, lastModified, defaultTtl), length);
+	}
+
+	/**
+	 * Make the entry of a cache file without one, e.g. cached by an older
+	 * version. It is stale, and revalidated with the time of the file.
+	 *
+	 * @param url  The URL of request
+	 * @param file The cache file
+	 * @return entry
+	 */
+	public static CacheEntry fromFile(String url, File file) {
+		return new CacheEntry(url, 200, null, file.lastModified(), null, null, 0, 0, file.length());
+	}
+
+	/**
+	 * Confirm the entry with a "304 Not Modified" response, which may carry new
+	 * validators and a new expiry.
+	 *
+	 * @param httpClient The connection to origin, after receiveHeader()
+	 * @param now        The time of response in millis
+	 * @param defaultTtl The most millis an object without explicit expiry is
+	 *                   fresh
+	 * @return The revalidated entry
+	 */
+	public CacheEntry revalidated(HttpClient httpClient, long now, long defaultTtl) {
+		String newEtag = httpClient.getHeaderField("ETag");
+		long newLastModified = Validators.parseDate(httpClient.getHeaderField("Last-Modified"));
+		if (newLastModified < 0) {
+			newLastModified = lastModified;
+		}
+		String directives = httpClient.getHeaderField("Cache-Control");
+		if (directives == null) {
+			directives = cacheControl;
+		}
+		long newFetched = now - age(httpClient);
+		return new CacheEntry(url, status, newEtag != null ? newEtag : etag, newLastModified, contentType,
+				directives, newFetched, expiry(httpClient, directives, newFetched, newLastModified, defaultTtl),
+				length);
+	}
+
+	/**
+	 * Work out when a response becomes stale.
+	 */
+	private static long expiry(HttpClient httpClient, String directives, long fetched, long lastModified,
+			long defaultTtl) {
+		if (hasDirective(directives, "no-cache")) {
+			return fetched; // Revalidated on every request
+		}
+		long maxAge = directive(directives, "s-maxage");
+		if (maxAge < 0) {
+			maxAge = directive(directives, "max-age");
+		}
+		if (maxAge >= 0) {
+			return fetched + maxAge * 1000;
+		}
+		String expiresField = httpClient.getHeaderField("Expires");
+		if (expiresField != null) {
+			long expires = Validators.parseDate(expiresField);
+			long date = Validators.parseDate(httpClient.getHeaderField("Date"));
+			// A malformed date means already expired, the clocks are compared through "Date"
+			return expires < 0 ? fetched : fetched + expires - (date >= 0 ? date : fetched);
+		}
+		if (lastModified >= 0 && lastModified < fetched) {
+			// A tenth of the time the object has not changed
+			return fetched + Math.min((fetched - lastModified) / 10, Math.min(defaultTtl, MAX_HEURISTIC));
+		}
+		return fetched + defaultTtl;
+	}
+
+	/**
+	 * @return The millis the response had spent in caches before it arrived
+	 */
+	private static long age(HttpClient httpClient) {
+		String age = httpClient.getHeaderField("Age");
+		try {
+			return age == null ? 0 : Math.max(0, Long.parseLong(age.trim()) * 1000);
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Check whether the object may be sent without revalidation. The client may
+	 * ask for a fresher object with "no-cache", "max-age" or "Pragma: no-cache".
+	 *
+	 * @param now     The current time in millis
+	 * @param request The request of client, or null to check the object only
+	 * @return true if the object is fresh
+	 */
+	public boolean isFresh(long now, HttpMessageReader request) {
+		if (request != null) {
+			String directives = request.getHeader("Cache-Control");
+			if (directives == null) {
+				if (request.headerContains("Pragma", "no-cache")) {
+					return false;
+				}
+			} else {
+				if (hasDirective(directives, "no-cache")) {
+					return false;
+				}
+				long maxAge = directive(directives, "max-age");
+				if (maxAge >= 0 && now - fetched > maxAge * 1000) {
+					return false;
+				}
+			}
+		}
+		return now < expires;
+	}
+
+	/**
+	 * @param directives The value of "Cache-Control", or null
+	 * @param name       The name of directive
+	 * @return true if the directive is given
+	 */
+	private static boolean hasDirective(String directives, String name) {
+		return directive(directives, name) != -2;
+	}
+
+	/**
+	 * Find a directive of "Cache-Control".
+	 *
+	 * @param directives The value of "Cache-Control", or null
+	 * @param name       The name of directive
+	 * @return The number of seconds given, -1 if the directive has no number, or
+	 *         -2 if it is not given
+	 */
+	private static long directive(String directives, String name) {
+		if (directives == null) {
+			return -2;
+		}
+		for (String directive : directives.split(",")) {
+			directive = directive.trim();
+			int equals = directive.indexOf('=');
+			String key = equals == -1 ? directive : directive.substring(0, equals).trim();
+			if (!key.equalsIgnoreCase(name)) {
+				continue;
+			}
+			if (equals == -1) {
+				return -1;
+			}
+			String value = directive.substring(equals + 1).trim();
+			if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+				value = value.substring(1, value.length() - 1);
+			}
+			try {
+				return Math.max(0, Long.parseLong(value));
+			} catch (NumberFormatException ex) {
+				return 0; // A malformed lifetime is taken as none
+			}
+		}
+		return -2;
+	}
+
+	/**
+	 * @return The attributes of a conditional request for this object
+	 */
+	public String[] conditions() {
+		List<String> fields = new ArrayList<String>(2);
+		if (etag != null) {
+			fields.add("If-None-Match: " + etag);
+		}
+		if (lastModified >= 0) {
+			fields.add("If-Modified-Since: " + Validators.formatDate(lastModified));
+		}
+		return fields.toArray(new String[0]);
+	}
+
+	/**
+	 * @param now    The current time in millis
+	 * @param coding The content coding of a compressed variant, or null for the
+	 *               identity
+	 * @return The attributes of a response sent from the cache: the validators,
+	 *         the directives of origin and the age of object
+	 */
+	public String[] responseFields(long now, String coding) {
+		List<String> fields = new ArrayList<String>(6);
+		if (lastModified >= 0) {
+			fields.add("Last-Modified: " + Validators.formatDate(lastModified));
+		}
+		if (etag != null) {
+			fields.add("ETag: " + (coding == null ? etag : Compression.etag(etag, coding)));
+		}
+		if (cacheControl != null) {
+			fields.add("Cache-Control: " + cacheControl);
+		}
+		fields.add("Age: " + Math.max(0, (now - fetched) / 1000));
+		if (coding != null) {
+			fields.add("Content-Encoding: " + coding);
+			fields.add(Compression.VARY);
+		}
+		return fields.toArray(new String[0]);
+	}
+
+	/**
+	 * @param request The request of client
+	 * @param coding  The content coding of the variant sent, or null for the
+	 *                identity
+	 * @return true if the client holds this object already
+	 */
+	public boolean isNotModified(HttpMessageReader request, String coding) {
+		return Validators.isNotModified(request, coding == null ? etag : Compression.etag(etag, coding),
+				lastModified);
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getCacheControl() {
+		return cacheControl;
+	}
+
+	public long getFetched() {
+		return fetched;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public long getLength() {
+		return length;
+	}
+}
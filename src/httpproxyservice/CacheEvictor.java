@@ -0,0 +1,166 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Keeps the cache files, with their compressed variants, within a budget of
+ * bytes. It runs in the background and only looks at the CacheIndex, never at
+ * the directories. While the cache is over its budget, it samples a few
+ * entries at a time, continuing round the index like the hand of a clock, and
+ * removes the coldest of them. An entry is the colder the longer it has not
+ * been used, every hit counts as a minute of recency, so objects requested
+ * often outlive the ones requested once. Each run stops after a bounded number
+ * of removals, so the cache shrinks incrementally. The sparse files of objects
+ * fetched in ranges have a budget of their own in SparseCache.
+ *
+ * @author Li Taiji
+ * @date 2019-12-18
+ *
+ */
+public class CacheEvictor implements Runnable {
+
+	private static final int SAMPLE_SIZE = 16; // The entries compared for one removal
+	private static final int MAX_EVICTIONS = 256; // The most removals in a run
+	private static final long HIT_WEIGHT = 60000; // The millis of recency a hit is worth
+	private static final int MAX_HITS = 16; // The hits counted at most
+	private final CacheIndex cacheIndex;
+	private final MemoryCache memoryCache; // null if disabled
+	private final String rootpath;
+	private final long capacity; // The budget in bytes
+	private final long lowWater; // The bytes a run shrinks the cache to
+	private final Logger logger;
+	private final LongAdder evictedBytes = new LongAdder();
+	private final LongAdder evictedFiles = new LongAdder();
+	private Iterator<Map.Entry<String, CacheIndex.Usage>> hand; // Where the next sample starts
+	private long reportedFiles; // The files evicted at the last report
+	private long reportedTime; // millis
+
+	/**
+	 * @param cacheIndex  The entries of cached objects
+	 * @param memoryCache The memory cache, or null
+	 * @param rootpath    The root path of cache
+	 * @param capacity    The budget in bytes
+	 * @param logger      Log file
+	 */
+	public CacheEvictor(CacheIndex cacheIndex, MemoryCache memoryCache, String rootpath, long capacity,
+			Logger logger) {
+		this.cacheIndex = cacheIndex;
+		this.memoryCache = memoryCache;
+		this.rootpath = rootpath;
+		this.capacity = capacity;
+		this.lowWater = capacity - capacity / 20; // Some room, so not every fill starts a run
+		this.logger = logger;
+		this.reportedTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public void run() {
+		try {
+			if (cacheIndex.getBytes() <= capacity) {
+				return;
+			}
+			int evictions = 0;
+			while (cacheIndex.getBytes() > lowWater && evictions < MAX_EVICTIONS) {
+				String url = sample();
+				if (url == null) {
+					break;
+				}
+				evict(url);
+				evictions++;
+			}
+		} catch (RuntimeException ex) {
+			// A scheduled task stops for good if it throws
+			logger.log(Level.SEVERE, "Unexpected error in cache evictor" + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * @return The URL of the coldest entry sampled, or null if the cache is empty
+	 */
+	private String sample() {
+		String coldest = null;
+		long coldestScore = Long.MAX_VALUE;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			if (hand == null || !hand.hasNext()) {
+				hand = cacheIndex.usage().iterator(); // Round again
+				if (!hand.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, CacheIndex.Usage> candidate = hand.next();
+			CacheIndex.Usage usage = candidate.getValue();
+			long score = usage.getLastAccess() + Math.min(usage.getHits(), MAX_HITS) * HIT_WEIGHT;
+			if (score < coldestScore) {
+				coldest = candidate.getKey();
+				coldestScore = score;
+			}
+		}
+		return coldest;
+	}
+
+	/**
+	 * Remove an object from the index, the memory cache and the disk.
+	 *
+	 * @param url The URL of request
+	 */
+	private void evict(String url) {
+		long freed;
+		try {
+			freed = cacheIndex.remove(url);
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Can not evict " + url, ex);
+			return;
+		}
+		if (freed < 0) {
+			return; // Removed meanwhile
+		}
+		if (memoryCache != null) {
+			memoryCache.invalidate(url);
+		}
+		File file = new File(rootpath + url.replaceAll("/", "\\\\"));
+		if (!file.delete() && file.exists()) {
+			logger.warning("Can not delete the evicted file " + file);
+		}
+		Compression.deleteVariants(file);
+		evictedBytes.add(freed); // The variants deleted with the file included
+		evictedFiles.increment();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getUsedBytes() {
+		return cacheIndex.getBytes();
+	}
+
+	public long getEvictedBytes() {
+		return evictedBytes.sum();
+	}
+
+	public long getEvictedFiles() {
+		return evictedFiles.sum();
+	}
+
+	/**
+	 * @return The state of disk cache, with the files evicted per minute since
+	 *         the last report
+	 */
+	public synchronized String report() {
+		long now = System.currentTimeMillis();
+		long files = getEvictedFiles();
+		long rate = (files - reportedFiles) * 60000 / Math.max(1, now - reportedTime);
+		reportedFiles = files;
+		reportedTime = now;
+		return "Disk cache: " + getUsedBytes() + " of " + capacity + " bytes used by " + cacheIndex.size()
+				+ " files, " + getEvictedBytes() + " bytes in " + files + " files evicted, " + rate
+				+ " files/min";
+	}
+}
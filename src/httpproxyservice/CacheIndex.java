@@ -0,0 +1,514 @@
+package httpproxyservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * The entries of the proxy cache, kept in memory and in an append-only file.
+ * Every change is appended as one record of length, CRC-32 and content, so a
+ * crash can only leave a torn record at the end, which is dropped when the
+ * file is memory-mapped window by window and replayed at startup. A lookup is
+ * then a hash probe instead of a file system call. Appends are written through
+ * to the OS at once but only forced to the disk by force(), which the proxy
+ * calls every second, so a crash of the machine loses at most the changes of
+ * the last second, whose objects are then fetched again. The file is compacted
+ * in the background once
+ * most of its records have been superseded. The index also counts the bytes of
+ * cached objects and when each was last used, which the CacheEvictor needs to
+ * keep the cache in its budget.
+ *
+ * @author Li Taiji
+ * @date 2019-12-16
+ *
+ */
+public class CacheIndex implements Closeable {
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int RECORD_HEADER = 8; // Length and CRC-32
+	private static final int MAX_RECORD = 1 << 20;
+	private static final long WINDOW = 64L << 20; // The bytes mapped at a time to replay
+	private final File file;
+	private final Logger logger;
+	private final ConcurrentHashMap<String, CacheEntry> entries;
+	private final ConcurrentHashMap<String, Usage> usage; // How the objects are used, not kept in the file
+	private final AtomicLong bytes = new AtomicLong(); // The bytes of cached objects and their variants
+	private final boolean created; // Whether the file did not exist at startup
+	private FileChannel channel; // Appends to the file
+	private long records; // The records in the file, live or superseded
+	private boolean dirty; // Whether records have been appended since the last force
+
+	/**
+	 * Open the index and replay its records.
+	 *
+	 * @param file   The file of index
+	 * @param logger Log file
+	 * @throws IOException
+	 */
+	public CacheIndex(File file, Logger logger) throws IOException {
+		this(file, logger, WINDOW);
+	}
+
+	/**
+	 * @param window The bytes mapped at a time to replay, at least one record
+	 */
+	CacheIndex(File file, Logger logger, long window) throws IOException {
+		this.file = file;
+		this.logger = logger;
+		this.entries = new ConcurrentHashMap<String, CacheEntry>();
+		this.usage = new ConcurrentHashMap<String, Usage>();
+		this.created = !file.exists();
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long start = System.nanoTime();
+		long end = replay(Math.max(window, RECORD_HEADER + MAX_RECORD));
+		if (end < channel.size()) {
+			logger.warning("Cache index: dropped " + (channel.size() - end) + " bytes of a torn record");
+			channel.truncate(end);
+		}
+		channel.position(end);
+		logger.info("Cache index: " + entries.size() + " entries loaded in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Read the records of file through read-only mappings of a window each, a
+	 * record cut by the end of a window is read again at the start of the next.
+	 *
+	 * @param window The bytes mapped at a time, at least the longest record
+	 * @return The end of the last intact record
+	 * @throws IOException
+	 */
+	private long replay(long window) throws IOException {
+		long size = channel.size();
+		long base = 0; // The offset of window in file
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[256];
+		while (base < size) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(window, size - base));
+			boolean last = base + map.capacity() == size;
+			while (map.hasRemaining()) {
+				int start = map.position();
+				if (map.remaining() < RECORD_HEADER) {
+					if (last) {
+						return base + start;
+					}
+					break;
+				}
+				int length = map.getInt();
+				int checksum = map.getInt();
+				if (length <= 0 || length > MAX_RECORD) {
+					return base + start;
+				}
+				if (length > map.remaining()) {
+					if (last) {
+						return base + start;
+					}
+					map.position(start);
+					break;
+				}
+				if (payload.length < length) {
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+				map.get(payload, 0, length);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					return base + start;
+				}
+				try {
+					apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+				} catch (IOException ex) {
+					return base + start;
+				}
+				records++;
+			}
+			base += map.position();
+		}
+		return base;
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		long hash = in.readLong();
+		String url = in.readUTF();
+		if (hash != hash(url)) {
+			throw new IOException("Wrong key");
+		}
+		if (type == REMOVE) {
+			forget(entries.remove(url));
+			return;
+		}
+		int status = in.readInt();
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		long fetched = in.readLong();
+		long expires = in.readLong();
+		String etag = readString(in);
+		String contentType = readString(in);
+		String cacheControl = readString(in);
+		track(new CacheEntry(url, status, etag, lastModified, contentType, cacheControl, fetched, expires, length));
+	}
+
+	/**
+	 * Keep an entry and count its bytes, a replaced entry keeps its usage.
+	 */
+	private void track(CacheEntry entry) {
+		CacheEntry old = entries.put(entry.getUrl(), entry);
+		bytes.addAndGet(entry.getLength() - (old != null ? old.getLength() : 0));
+		if (old == null) {
+			usage.put(entry.getUrl(), new Usage(System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * @return The bytes of the object and its variants no longer counted
+	 */
+	private long forget(CacheEntry old) {
+		if (old == null) {
+			return 0;
+		}
+		long freed = old.getLength();
+		Usage used = usage.remove(old.getUrl());
+		if (used != null) {
+			freed += used.clearVariants();
+		}
+		bytes.addAndGet(-freed);
+		return freed;
+	}
+
+	/**
+	 * @param url The URL of request
+	 * @return The entry of object, or null if it is not cached
+	 */
+	public CacheEntry get(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * Add or replace the entry of an object.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public synchronized void put(CacheEntry entry) throws IOException {
+		track(entry);
+		append(encode(PUT, entry.getUrl(), entry));
+	}
+
+	/**
+	 * Remove the entry of an object.
+	 *
+	 * @param url The URL of request
+	 * @return The bytes of the object and its variants, -1 if it was not cached
+	 * @throws IOException
+	 */
+	public synchronized long remove(String url) throws IOException {
+		CacheEntry old = entries.remove(url);
+		if (old == null) {
+			return -1;
+		}
+		long freed = forget(old);
+		append(encode(REMOVE, url, null));
+		return freed;
+	}
+
+	/**
+	 * Count a request answered with a cached object.
+	 *
+	 * @param url The URL of request
+	 */
+	public void touch(String url) {
+		Usage used = usage.get(url);
+		if (used != null) {
+			used.touch(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @param url    The URL of request
+	 * @param coding "gzip" or "deflate"
+	 * @return The bytes of the compressed variant of object, or -1 if it has not
+	 *         been made of the cached version
+	 */
+	public long getVariant(String url, String coding) {
+		Usage used = usage.get(url);
+		return used != null ? used.getVariant(coding) : -1;
+	}
+
+	/**
+	 * Record a compressed variant kept next to the file of an object, and count
+	 * it in the bytes of cache, it is deleted with the file. Variants made before
+	 * a start are not known, and are made again.
+	 *
+	 * @param entry  The entry of the version the variant was made from
+	 * @param coding "gzip" or "deflate"
+	 * @param length The bytes of variant
+	 * @return false if the object has been replaced or removed meanwhile, so the
+	 *         variant is out of date
+	 */
+	public synchronized boolean addVariant(CacheEntry entry, String coding, long length) {
+		Usage used = usage.get(entry.getUrl());
+		if (entries.get(entry.getUrl()) != entry || used == null) {
+			return false;
+		}
+		bytes.addAndGet(length - Math.max(0, used.setVariant(coding, length)));
+		return true;
+	}
+
+	/**
+	 * Forget the compressed variants of an object whose file has been replaced,
+	 * before they are deleted.
+	 *
+	 * @param url The URL of request
+	 */
+	public synchronized void clearVariants(String url) {
+		Usage used = usage.get(url);
+		if (used != null) {
+			bytes.addAndGet(-used.clearVariants());
+		}
+	}
+
+	/**
+	 * @return true if the index has been created at this start, so the cache
+	 *         files of an older version have no entries yet and are imported
+	 */
+	public boolean isCreated() {
+		return created;
+	}
+
+	/**
+	 * @return The entries, a live view
+	 */
+	public Collection<CacheEntry> entries() {
+		return entries.values();
+	}
+
+	/**
+	 * @return How the cached objects are used, a live view
+	 */
+	public Set<Map.Entry<String, Usage>> usage() {
+		return usage.entrySet();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	private void append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		records++;
+		dirty = true;
+	}
+
+	private static byte[] encode(byte type, String url, CacheEntry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(hash(url));
+		out.writeUTF(url);
+		if (entry != null) {
+			out.writeInt(entry.getStatus());
+			out.writeLong(entry.getLength());
+			out.writeLong(entry.getLastModified());
+			out.writeLong(entry.getFetched());
+			out.writeLong(entry.getExpires());
+			writeString(out, entry.getEtag());
+			writeString(out, entry.getContentType());
+			writeString(out, entry.getCacheControl());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the URL, which checks the key of a record.
+	 */
+	private static long hash(String url) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Rewrite the file with the live entries only, if most of its records have
+	 * been superseded. The new file replaces the old one atomically.
+	 */
+	public synchronized void compactIfNeeded() {
+		if (records < 1024 || records < 2L * entries.size()) {
+			return;
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		long before = records;
+		try {
+			List<CacheEntry> live = new ArrayList<CacheEntry>(entries.values());
+			try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				FileChannel old = channel;
+				channel = out;
+				try {
+					for (CacheEntry entry : live) {
+						append(encode(PUT, entry.getUrl(), entry));
+					}
+				} finally {
+					channel = old;
+				}
+				out.force(true);
+			}
+			channel.close();
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+			logger.info("Cache index compacted from " + before + " to " + live.size() + " records");
+			records = live.size();
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Can not compact the cache index", ex);
+			temp.delete();
+			if (!channel.isOpen()) {
+				try {
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+					channel.position(channel.size());
+				} catch (IOException reopen) {
+					logger.log(Level.SEVERE, "Can not reopen the cache index", reopen);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Force the records appended since the last call to the disk.
+	 */
+	public synchronized void force() {
+		if (!dirty) {
+			return;
+		}
+		try {
+			channel.force(false);
+			dirty = false;
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Can not force the cache index", ex);
+		}
+	}
+
+	/**
+	 * When an object was last used and how often, since the proxy started or
+	 * the object was cached. The fields are updated without locking, a lost
+	 * update only makes an object look a little colder.
+	 */
+	public static final class Usage {
+
+		private volatile long lastAccess; // millis
+		private volatile int hits;
+		private volatile long gzip = -1; // The bytes of variants, -1 if not made
+		private volatile long deflate = -1;
+
+		Usage(long now) {
+			this.lastAccess = now;
+		}
+
+		void touch(long now) {
+			lastAccess = now;
+			hits++;
+		}
+
+		public long getLastAccess() {
+			return lastAccess;
+		}
+
+		public int getHits() {
+			return hits;
+		}
+
+		long getVariant(String coding) {
+			return coding.equals("gzip") ? gzip : deflate;
+		}
+
+		/**
+		 * @return The bytes of the variant replaced, or -1
+		 */
+		long setVariant(String coding, long length) {
+			long old = getVariant(coding);
+			if (coding.equals("gzip")) {
+				gzip = length;
+			} else {
+				deflate = length;
+			}
+			return old;
+		}
+
+		/**
+		 * @return The bytes of the variants forgotten
+		 */
+		long clearVariants() {
+			long cleared = getVariantBytes();
+			gzip = -1;
+			deflate = -1;
+			return cleared;
+		}
+
+		/**
+		 * @return The bytes of variants, counted in the bytes of cache
+		 */
+		public long getVariantBytes() {
+			return Math.max(0, gzip) + Math.max(0, deflate);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.force(false);
+		channel.close();
+	}
+}
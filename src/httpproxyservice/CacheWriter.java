@@ -0,0 +1,294 @@
+package httpproxyservice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Writes the cache files behind the handlers. A handler copies the content it
+ * relays into a fill, and a single writer thread appends it to a temp file
+ * through a large buffer, so the disk sees few big writes and the client never
+ * waits for it. A committed fill is forced to the disk, renamed to the cache
+ * file and then published. When too many bytes are waiting or the disk is nearly full the
+ * fill is dropped instead of blocking the handler, the object is then simply
+ * not cached.
+ *
+ * @author Li Taiji
+ * @date 2019-12-17
+ *
+ */
+public class CacheWriter {
+
+	private static final int BATCH_SIZE = 64 * 1024; // The bytes written to disk at a time
+	private static final long SPACE_CHECK_INTERVAL = 1000; // millis
+	private final File root; // The disk checked for free space
+	private final long maxPending; // The most bytes waiting to be written
+	private final long minFree; // The free bytes the disk keeps
+	private final Logger logger;
+	private final LinkedBlockingQueue<Operation> queue;
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicLong sequence = new AtomicLong(); // Makes the names of temp files
+	private final LongAdder written = new LongAdder();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long freeSpace;
+	private volatile long freeSpaceChecked;
+
+	/**
+	 * @param root       The root path of cache
+	 * @param maxPending The most bytes waiting to be written
+	 * @param minFree    The free bytes the disk keeps
+	 * @param logger     Log file
+	 */
+	public CacheWriter(File root, long maxPending, long minFree, Logger logger) {
+		this.root = root;
+		this.maxPending = maxPending;
+		this.minFree = minFree;
+		this.logger = logger;
+		this.queue = new LinkedBlockingQueue<Operation>();
+		Thread thread = new Thread(this::run, "cache-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start writing a cache file.
+	 *
+	 * @param target The cache file
+	 * @return The fill, or null if the disk is too full
+	 */
+	public Fill begin(File target) {
+		long now = System.currentTimeMillis();
+		if (now - freeSpaceChecked > SPACE_CHECK_INTERVAL) {
+			freeSpace = root.getUsableSpace();
+			freeSpaceChecked = now;
+		}
+		if (freeSpace < minFree) {
+			dropped.increment();
+			return null;
+		}
+		return new Fill(target);
+	}
+
+	/**
+	 * Write the queued operations, on the writer thread.
+	 */
+	private void run() {
+		while (true) {
+			Operation operation;
+			try {
+				operation = queue.take();
+			} catch (InterruptedException ex) {
+				return;
+			}
+			Fill fill = operation.fill;
+			boolean success = false;
+			try {
+				if (operation.data != null) {
+					pending.addAndGet(-operation.length);
+					if (!fill.failed) {
+						fill.append(operation.data, operation.length);
+					}
+				} else if (operation.done != null) {
+					success = !fill.failed && fill.publish();
+				} else {
+					fill.discard();
+				}
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Can not write cache file " + fill.target, ex);
+				fill.failed = true;
+				fill.discard();
+			} catch (RuntimeException ex) {
+				logger.log(Level.SEVERE, "Unexpected error in cache writer: " + ex.getMessage(), ex);
+				fill.failed = true;
+				fill.discard();
+			} finally {
+				if (operation.done != null) {
+					complete(operation.done, success); // Whatever happened, so the waiting flight lands
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tell a handler how its commit ended, on the writer thread.
+	 *
+	 * @param done      The callback of commit
+	 * @param published Whether the cache file has been published
+	 */
+	private void complete(Consumer<Boolean> done, boolean published) {
+		try {
+			done.accept(published);
+		} catch (RuntimeException ex) {
+			logger.log(Level.SEVERE, "Unexpected error after commit: " + ex.getMessage(), ex);
+		}
+	}
+
+	public long getPending() {
+		return pending.get();
+	}
+
+	public long getWritten() {
+		return written.sum();
+	}
+
+	public long getPublished() {
+		return published.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Cache writer: " + getPublished() + " files published, " + getWritten() + " bytes written, "
+				+ getDropped() + " fills dropped, " + getPending() + " bytes pending";
+	}
+
+	/**
+	 * A task for the writer thread: a part of content, a commit or an abort.
+	 */
+	private static final class Operation {
+
+		private final Fill fill;
+		private final byte[] data; // null for a commit or an abort
+		private final int length;
+		private final Consumer<Boolean> done; // null for data or an abort
+
+		Operation(Fill fill, byte[] data, int length, Consumer<Boolean> done) {
+			this.fill = fill;
+			this.data = data;
+			this.length = length;
+			this.done = done;
+		}
+	}
+
+	/**
+	 * A cache file being written. write(), commit() and abort() are called by one
+	 * handler, the file itself is only touched by the writer thread.
+	 */
+	public final class Fill {
+
+		private final File target;
+		private final File temp;
+		private boolean closed; // Committed or aborted, on the handler
+		private volatile boolean failed; // Dropped or failed, the file is not published
+		private OutputStream out; // Opened by the writer thread
+		private FileOutputStream file; // Under out, forced before the rename
+
+		Fill(File target) {
+			this.target = target;
+			this.temp = new File(target.getPath() + ".part" + sequence.incrementAndGet());
+		}
+
+		/**
+		 * Queue a part of content, which is copied.
+		 *
+		 * @param b
+		 * @param off
+		 * @param len
+		 * @return false if the fill has been dropped, because too many bytes are
+		 *         waiting or writing failed
+		 */
+		public boolean write(byte[] b, int off, int len) {
+			if (closed || failed) {
+				return false;
+			}
+			if (pending.addAndGet(len) > maxPending) {
+				pending.addAndGet(-len);
+				dropped.increment();
+				abort();
+				return false;
+			}
+			byte[] data = new byte[len];
+			System.arraycopy(b, off, data, 0, len);
+			queue.add(new Operation(this, data, len, null));
+			return true;
+		}
+
+		/**
+		 * Finish the file. The writer thread renames it to the cache file and calls
+		 * done with true, or with false if the fill has failed.
+		 *
+		 * @param done Called on the writer thread
+		 */
+		public void commit(Consumer<Boolean> done) {
+			if (closed) {
+				done.accept(false);
+				return;
+			}
+			closed = true;
+			queue.add(new Operation(this, null, 0, done));
+		}
+
+		/**
+		 * Give up the file, e.g. because the content is incomplete.
+		 */
+		public void abort() {
+			if (!closed) {
+				closed = true;
+				failed = true;
+				queue.add(new Operation(this, null, 0, null));
+			}
+		}
+
+		/**
+		 * @return false if the fill has been dropped
+		 */
+		public boolean isActive() {
+			return !closed && !failed;
+		}
+
+		private void append(byte[] data, int length) throws IOException {
+			if (out == null) {
+				File dir = temp.getAbsoluteFile().getParentFile();
+				if (!dir.exists()) {
+					dir.mkdirs(); // If the directory does not exist, it will be created.
+				}
+				file = new FileOutputStream(temp);
+				out = new BufferedOutputStream(file, BATCH_SIZE);
+			}
+			out.write(data, 0, length);
+			written.add(length);
+		}
+
+		private boolean publish() throws IOException {
+			if (out == null) {
+				append(new byte[0], 0); // An empty content
+			}
+			out.flush();
+			file.getChannel().force(false); // A crash leaves no renamed file without its content
+			out.close();
+			out = null;
+			file = null;
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			published.increment();
+			return true;
+		}
+
+		private void discard() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					// The file is deleted anyway
+				}
+				out = null;
+				file = null;
+			}
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * Decodes a content sent with "Transfer-Encoding: chunked". The chunk sizes
+ * and the trailer are read through the message reader, so the bytes of the
+ * next message on the connection are kept. The stream ends after the last
+ * chunk, the connection is not closed.
+ *
+ * @author Li Taiji
+ * @date 2019-12-14
+ *
+ */
+public class ChunkedInputStream extends InputStream {
+
+	private final HttpMessageReader in;
+	private long chunkRemaining; // The bytes of current chunk not read yet
+	private boolean started; // Whether a chunk has been read
+	private boolean complete; // Whether the last chunk and the trailer have been read
+	private boolean eof;
+
+	/**
+	 * @param in The reader of message, after its head has been read
+	 */
+	public ChunkedInputStream(HttpMessageReader in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read the size of next chunk, and the trailer after the last one.
+	 *
+	 * @return false at the end of content
+	 * @throws IOException If the chunk size is malformed
+	 */
+	private boolean nextChunk() throws IOException {
+		if (started && !"".equals(in.readLine())) {
+			throw new IOException("Malformed chunk");
+		}
+		started = true;
+		String line = in.readLine();
+		if (line == null) {
+			eof = true; // Closed before the last chunk
+			return false;
+		}
+		int end = line.indexOf(';'); // Chunk extensions are ignored
+		String size = (end == -1 ? line : line.substring(0, end)).trim();
+		try {
+			chunkRemaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException ex) {
+			throw new IOException("Malformed chunk size: " + line);
+		}
+		if (chunkRemaining < 0) {
+			throw new IOException("Malformed chunk size: " + line);
+		}
+		if (chunkRemaining == 0) {
+			// Skip the trailer fields up to the blank line
+			while ((line = in.readLine()) != null && !line.isEmpty()) {
+				// Trailer fields are not used
+			}
+			eof = true;
+			complete = line != null;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (eof) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (chunkRemaining == 0 && !nextChunk()) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+		if (n == -1) {
+			eof = true; // Closed within the chunk
+			return -1;
+		}
+		chunkRemaining -= n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return eof ? 0 : (int) Math.min(in.available(), chunkRemaining);
+	}
+
+	/**
+	 * @return true if the content has been read up to the end of the last chunk
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * The connection is left open for the next message.
+	 */
+	@Override
+	public void close() {
+	}
+}
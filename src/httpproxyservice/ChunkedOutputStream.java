@@ -0,0 +1,70 @@
+package httpproxyservice;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * Encodes a content of unknown length with "Transfer-Encoding: chunked", one
+ * chunk per write, so it can be sent before its size is known. finish() ends
+ * the content and leaves the connection open for the next message.
+ *
+ * @author Li Taiji
+ * @date 2019-12-14
+ *
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private boolean finished;
+
+	/**
+	 * @param out The stream to client, after the header has been written
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished) {
+			throw new IOException("Content already finished");
+		}
+		if (len == 0) {
+			return; // An empty chunk would end the content
+		}
+		out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+		out.write(CRLF);
+		out.write(b, off, len);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Write the last chunk, the underlying stream is not closed.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			finished = true;
+			out.write(LAST_CHUNK);
+		}
+	}
+
+	/**
+	 * Finish the content and flush it, the underlying stream is left open.
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+		flush();
+	}
+}
@@ -297,8 +297,17 @@ public class Client {
 			/**
 			 * Parse the input arguments.
 			 */
+			if (args.length > 1 && args[1].equals("--load")) {
+				// Headless, see LoadGenerator for the other switches
+				ServerOptions options = new ServerOptions(args, 1);
+				LoadGenerator generator = new LoadGenerator(args[0], options.getInt("port", 18085), options);
+				generator.run();
+				screen.print(generator.report());
+				screen.flush();
+				return;
+			}
 			if (args.length != 1) {
-				System.err.println("Usage: Client <server>");
+				System.err.println("Usage: Client <server> [--load [--port=18085] [LoadGenerator switches]]");
 				System.exit(0);
 			}
 
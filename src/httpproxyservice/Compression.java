@@ -0,0 +1,266 @@
+package httpproxyservice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * The content codings of a response, "gzip" and "deflate", chosen from the
+ * "Accept-Encoding" of request. A compressed variant of a file is made once,
+ * with the best compression, and kept next to it for the version of file it
+ * was made from, so later requests send it without compressing again. Variants
+ * are made in the background by one thread, each at most once at a time, and
+ * the identity is sent until the variant is ready; files beyond a size are not
+ * compressed. Responses which may be compressed carry "Vary: Accept-Encoding",
+ * so caches keep the variants apart.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class Compression {
+
+	public static final String VARY = "Vary: Accept-Encoding";
+	private static final long MIN_LENGTH = 256; // Smaller files gain too little
+	private static final long MAX_LENGTH = 64L * 1024 * 1024; // Larger files take too long
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Logger logger = Logger.getLogger("Compression");
+	private static final Set<String> building = ConcurrentHashMap.newKeySet(); // The paths of variants
+	// The version of file each variant of variant() was made from, by the path of variant
+	private static final ConcurrentHashMap<String, String> versions = new ConcurrentHashMap<String, String>();
+	private static final AtomicLong sequence = new AtomicLong(); // Makes the names of temp files
+	private static final ThreadPoolExecutor builder = newBuilder();
+
+	private Compression() {
+	}
+
+	private static ThreadPoolExecutor newBuilder() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(256), r -> {
+					Thread thread = new Thread(r, "compression");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Choose the coding of response. "gzip" is preferred to "deflate" at the
+	 * same quality, a quality of 0 refuses a coding.
+	 *
+	 * @param request The request, after its head has been read
+	 * @return "gzip", "deflate", or null for the identity
+	 */
+	public static String negotiate(HttpMessageReader request) {
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return null;
+		}
+		double gzip = -1; // -1 if not listed
+		double deflate = -1;
+		double any = 0;
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			double quality = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException ex) {
+						quality = 0;
+					}
+				}
+			}
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				gzip = Math.max(gzip, quality);
+			} else if (name.equals("deflate")) {
+				deflate = quality;
+			} else if (name.equals("*")) {
+				any = quality;
+			}
+		}
+		// "*" stands for every coding not listed
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+		if (gzip > 0 && gzip >= deflate) {
+			return "gzip";
+		}
+		return deflate > 0 ? "deflate" : null;
+	}
+
+	/**
+	 * @param contentType The type of content, or null
+	 * @return true if the content is text or a similar type worth compressing
+	 */
+	public static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		String type = contentType.toLowerCase();
+		return type.startsWith("text/") || type.startsWith("application/javascript")
+				|| type.startsWith("application/json") || type.startsWith("application/xml")
+				|| type.contains("+xml") || type.contains("+json");
+	}
+
+	/**
+	 * @param coding "gzip" or "deflate"
+	 * @return The suffix of the variant files of the coding
+	 */
+	public static String suffix(String coding) {
+		return coding.equals("gzip") ? ".gz" : ".zz";
+	}
+
+	/**
+	 * Get the compressed variant of a file. If it has not been made of this
+	 * version of file, it is made in the background, unless that is already
+	 * under way.
+	 *
+	 * @param file    The file
+	 * @param variant The file of variant
+	 * @param coding  "gzip" or "deflate"
+	 * @param version The version of file, e.g. its entity tag
+	 * @return The variant, or null if it is not ready, the file is too small or
+	 *         too large, or it compresses badly
+	 */
+	public static File variant(File file, File variant, String coding, String version) {
+		long length = file.length();
+		String path = variant.getPath();
+		if (!version.equals(versions.get(path))) {
+			// A variant made from a file replaced meanwhile is made again by the next request
+			build(file, variant, coding, length, made -> versions.put(path, version));
+			return null;
+		}
+		// A variant which is not smaller is kept, so it is not made again, but not sent
+		return variant.length() < length ? variant : null;
+	}
+
+	/**
+	 * Make the variant of a file in the background, unless it is already under
+	 * way or the file is too small or too large.
+	 *
+	 * @param file    The file
+	 * @param variant The file of variant
+	 * @param coding  "gzip" or "deflate"
+	 * @param length  The bytes of file
+	 * @param done    Called on the thread of builder with the bytes of variant,
+	 *                once it has replaced the file of variant
+	 */
+	public static void build(File file, File variant, String coding, long length, LongConsumer done) {
+		if (length < MIN_LENGTH || length > MAX_LENGTH) {
+			return;
+		}
+		String path = variant.getPath();
+		if (building.add(path)) {
+			try {
+				builder.execute(() -> {
+					try {
+						make(file, variant, coding);
+						done.accept(variant.length());
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, "Can not compress " + file, ex);
+					} catch (RuntimeException ex) {
+						logger.log(Level.SEVERE, "Unexpected error in compression: " + ex.getMessage(), ex);
+					} finally {
+						building.remove(path);
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				building.remove(path); // Too many waiting, asked again by a later request
+			}
+		}
+	}
+
+	/**
+	 * Make the variant of a file. It is written to a temp file which replaces
+	 * the variant when it is complete.
+	 *
+	 * @param file    The file
+	 * @param variant The file of variant
+	 * @param coding  "gzip" or "deflate"
+	 * @throws IOException
+	 */
+	static void make(File file, File variant, String coding) throws IOException {
+		File dir = variant.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs(); // If the directory does not exist, it will be created.
+		}
+		File temp = new File(variant.getPath() + ".part" + sequence.incrementAndGet());
+		try {
+			try (OutputStream out = open(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE),
+					coding)) {
+				Files.copy(file.toPath(), out);
+			}
+			Files.move(temp.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	private static OutputStream open(OutputStream out, String coding) throws IOException {
+		if (coding.equals("gzip")) {
+			return new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+		}
+		return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				def.end(); // The deflater given is not ended by the stream
+			}
+		};
+	}
+
+	/**
+	 * Delete the compressed variants of a file.
+	 *
+	 * @param file The file, the variants are next to it
+	 */
+	public static void deleteVariants(File file) {
+		for (String coding : new String[] { "gzip", "deflate" }) {
+			File variant = new File(file.getPath() + suffix(coding));
+			versions.remove(variant.getPath());
+			variant.delete();
+		}
+	}
+
+	/**
+	 * @param etag   The entity tag of the identity, or null
+	 * @param coding The coding of variant
+	 * @return The entity tag of variant, which differs from the one of identity
+	 */
+	public static String etag(String etag, String coding) {
+		if (etag == null || !etag.endsWith("\"")) {
+			return etag;
+		}
+		return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+	}
+}
@@ -0,0 +1,129 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Sends files to the client. When the socket has a channel the file goes
+ * from the page cache to the socket with FileChannel.transferTo() without
+ * being copied into the Java heap, otherwise it is streamed through the output
+ * stream of the socket. A small part of file, or a buffer, goes out together
+ * with the header before it when the stream is a ResponseOutputStream.
+ *
+ * @author Li Taiji
+ * @date 2019-12-10
+ *
+ */
+public class ContentSender {
+
+	private static final int BUFFER_SIZE = 8192; // The bytes copied at a time without a channel
+	private static final int SMALL_CONTENT = 16 * 1024; // Parts up to this are read and sent with the header
+
+	private ContentSender() {
+	}
+
+	/**
+	 * send the whole file
+	 *
+	 * @param file
+	 * @param outputStream The stream to client, flushed before the file is sent
+	 *                     through the channel, left for the caller to flush
+	 *                     otherwise
+	 * @param channel      The channel of socket, or null if it has none
+	 * @throws IOException
+	 */
+	public static void sendFile(File file, OutputStream outputStream, SocketChannel channel) throws IOException {
+		if (channel != null && channel.isBlocking()) {
+			try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				sendRange(fileChannel, 0, fileChannel.size(), outputStream, channel);
+			}
+		} else {
+			Files.copy(file.toPath(), outputStream);
+		}
+	}
+
+	/**
+	 * send a part of file, the position of file channel is not changed
+	 *
+	 * @param fileChannel  The file
+	 * @param position     The first byte
+	 * @param count        The number of bytes
+	 * @param outputStream The stream to client, flushed before the part is sent
+	 *                     through the channel, left for the caller to flush
+	 *                     otherwise
+	 * @param channel      The channel of socket, or null if it has none
+	 * @throws IOException
+	 */
+	public static void sendRange(FileChannel fileChannel, long position, long count, OutputStream outputStream,
+			SocketChannel channel) throws IOException {
+		long end = position + count;
+		if (channel != null && channel.isBlocking() && count <= SMALL_CONTENT
+				&& outputStream instanceof ResponseOutputStream) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) count);
+			while (buffer.hasRemaining()) {
+				if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+					throw new IOException("File shorter than expected");
+				}
+			}
+			buffer.flip();
+			((ResponseOutputStream) outputStream).writeGathering(buffer, channel);
+		} else if (channel != null && channel.isBlocking()) {
+			outputStream.flush(); // The header goes first
+			while (position < end) {
+				long sent = fileChannel.transferTo(position, end - position, channel);
+				if (sent <= 0 && position >= fileChannel.size()) {
+					throw new IOException("File shorter than expected");
+				}
+				position += sent;
+			}
+		} else {
+			byte[] bytes = new byte[(int) Math.min(count, BUFFER_SIZE)];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (position < end) {
+				buffer.clear().limit((int) Math.min(bytes.length, end - position));
+				int len = fileChannel.read(buffer, position);
+				if (len == -1) {
+					throw new IOException("File shorter than expected");
+				}
+				outputStream.write(bytes, 0, len);
+				position += len;
+			}
+		}
+	}
+
+	/**
+	 * send the content of buffer, which is consumed
+	 *
+	 * @param buffer
+	 * @param outputStream The stream to client, flushed before the buffer is sent
+	 *                     through the channel, left for the caller to flush
+	 *                     otherwise
+	 * @param channel      The channel of socket, or null if it has none
+	 * @throws IOException
+	 */
+	public static void sendBuffer(ByteBuffer buffer, OutputStream outputStream, SocketChannel channel)
+			throws IOException {
+		if (channel != null && channel.isBlocking() && outputStream instanceof ResponseOutputStream) {
+			((ResponseOutputStream) outputStream).writeGathering(buffer, channel);
+		} else if (channel != null && channel.isBlocking()) {
+			outputStream.flush(); // The header goes first
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else {
+			byte[] bytes = new byte[Math.min(buffer.remaining(), BUFFER_SIZE)];
+			while (buffer.hasRemaining()) {
+				int len = Math.min(buffer.remaining(), bytes.length);
+				buffer.get(bytes, 0, len);
+				outputStream.write(bytes, 0, len);
+			}
+		}
+	}
+}
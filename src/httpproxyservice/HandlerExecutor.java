@@ -0,0 +1,117 @@
+package httpproxyservice;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Runs the handlers of the servers, either on a fixed thread pool or, when
+ * started with "--virtual", on one virtual thread per handler. The number of
+ * handlers running at once can be capped with "--max-connections", in which
+ * case the server stops accepting until a handler finishes.
+ *
+ * @author Li Taiji
+ * @date 2019-12-08
+ *
+ */
+public class HandlerExecutor {
+
+	private static final int DEFAULT_VIRTUAL_CONNECTIONS = 10000; // Cap of virtual threads if not given
+	private final ExecutorService pool;
+	private final Semaphore permits; // null if the handlers are not capped
+
+	/**
+	 * @param options  The switches of server
+	 * @param poolSize The threads per processor of the fixed pool
+	 * @param logger   Log file
+	 */
+	public HandlerExecutor(ServerOptions options, int poolSize, Logger logger) {
+		ExecutorService virtual = null;
+		int maxConnections = options.getInt("max-connections", 0);
+		if (options.has("virtual")) {
+			virtual = newVirtualThreadExecutor(logger);
+			if (virtual != null && maxConnections == 0) {
+				maxConnections = DEFAULT_VIRTUAL_CONNECTIONS;
+			}
+		}
+		if (virtual != null) {
+			this.pool = virtual;
+			logger.info("Handlers run on virtual threads, at most " + maxConnections + " at once");
+		} else {
+			this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * poolSize);
+		}
+		this.permits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+	}
+
+	/**
+	 * Wait until another handler may run, called before accepting a connection.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		if (permits != null) {
+			permits.acquire();
+		}
+	}
+
+	/**
+	 * Give back the permit of a connection that will not be executed.
+	 */
+	public void release() {
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Run the handler, which must have been given a permit by acquire().
+	 *
+	 * @param handler
+	 */
+	public void execute(Runnable handler) {
+		pool.execute(() -> {
+			try {
+				handler.run();
+			} finally {
+				release();
+			}
+		});
+	}
+
+	/**
+	 * @return The handlers waiting for a thread of the fixed pool, 0 on
+	 *         virtual threads
+	 */
+	public int getQueueDepth() {
+		return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getQueue().size() : 0;
+	}
+
+	/**
+	 * Get the pool of executor, which does not take permits.
+	 *
+	 * @return pool
+	 */
+	public ExecutorService pool() {
+		return pool;
+	}
+
+	/**
+	 * Create an executor starting a virtual thread per task, if the running Java
+	 * supports it.
+	 *
+	 * @param logger Log file
+	 * @return executor, or null if virtual threads are not available
+	 */
+	static ExecutorService newVirtualThreadExecutor(Logger logger) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			logger.log(Level.WARNING, "Virtual threads need Java 21, using the fixed thread pool");
+			return null;
+		}
+	}
+}
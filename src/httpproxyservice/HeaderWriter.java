@@ -0,0 +1,171 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Writes the header of responses. The fixed parts are encoded once, the
+ * "Date" line is encoded at most once a second and shared by all handlers,
+ * and the header is put together in a buffer of the writer, so a response
+ * header costs no strings but the ones of its own attributes. The types of
+ * content are looked up once per file extension.
+ *
+ * A writer is used by one handler at a time.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class HeaderWriter {
+
+	private static final byte[] CRLF = encode("\r\n");
+	private static final byte[] SERVER = encode("Server: MyHttpServer/1.0\r\n");
+	private static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+	private static final byte[] CONTENT_TYPE = encode("Content-type: ");
+	private static final byte[] KEEP_ALIVE = encode("Connection: keep-alive\r\n\r\n");
+	private static final byte[] CLOSE = encode("Connection: close\r\n\r\n");
+	private static final int MAX_STATUS_LINES = 64; // Other status lines are encoded every time
+	private static final ConcurrentHashMap<String, byte[]> statusLines = new ConcurrentHashMap<String, byte[]>();
+	private static final ConcurrentHashMap<String, String> contentTypes = new ConcurrentHashMap<String, String>();
+	private static volatile DateLine dateLine = new DateLine(-1, null);
+	private byte[] buffer = new byte[512];
+	private int count; // The bytes of the header being written
+
+	/**
+	 * Write a response header.
+	 *
+	 * @param out          The stream to client
+	 * @param responseCode The status line, e.g. "HTTP/1.1 200 OK"
+	 * @param contentType
+	 * @param length       The length of content
+	 * @param keepAlive    Whether the connection is kept
+	 * @param fields       Other attributes of header, e.g. "ETag: ..."
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, String responseCode, String contentType, long length, boolean keepAlive,
+			String... fields) throws IOException {
+		count = 0;
+		put(statusLine(responseCode));
+		put(date());
+		put(SERVER);
+		put(CONTENT_LENGTH);
+		putLong(length);
+		put(CRLF);
+		put(CONTENT_TYPE);
+		putString(String.valueOf(contentType));
+		put(CRLF);
+		for (String field : fields) {
+			putString(field);
+			put(CRLF);
+		}
+		put(keepAlive ? KEEP_ALIVE : CLOSE);
+		out.write(buffer, 0, count);
+	}
+
+	/**
+	 * @param path The path of a file
+	 * @return The type of content by the extension of file, or null if it is
+	 *         unknown
+	 */
+	public static String contentType(String path) {
+		int dot = path.lastIndexOf('.');
+		String extension = dot > Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/'))
+				? path.substring(dot).toLowerCase()
+				: "";
+		String type = contentTypes.get(extension);
+		if (type == null) {
+			type = URLConnection.getFileNameMap().getContentTypeFor(path);
+			if (type == null) {
+				type = ""; // Unknown types are remembered too
+			}
+			contentTypes.putIfAbsent(extension, type);
+		}
+		return type.isEmpty() ? null : type;
+	}
+
+	private static byte[] statusLine(String responseCode) {
+		byte[] line = statusLines.get(responseCode);
+		if (line == null) {
+			line = encode(responseCode + "\r\n");
+			if (statusLines.size() < MAX_STATUS_LINES) {
+				statusLines.putIfAbsent(responseCode, line);
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * @return The "Date" line of the current second
+	 */
+	private static byte[] date() {
+		long second = System.currentTimeMillis() / 1000;
+		DateLine line = dateLine;
+		if (line.second != second) {
+			// Handlers racing here encode the same line
+			line = new DateLine(second, encode("Date: " + Validators.formatDate(second * 1000) + "\r\n"));
+			dateLine = line;
+		}
+		return line.bytes;
+	}
+
+	private static byte[] encode(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private void ensure(int len) {
+		if (count + len > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+		}
+	}
+
+	private void put(byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void putString(String text) {
+		int len = text.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			char c = text.charAt(i);
+			buffer[count++] = (byte) (c <= 0xFF ? c : '?'); // As ISO-8859-1 encodes it
+		}
+	}
+
+	private void putLong(long value) {
+		if (value < 0) {
+			putString(Long.toString(value));
+			return;
+		}
+		int digits = 1;
+		for (long rest = value; rest >= 10; rest /= 10) {
+			digits++;
+		}
+		ensure(digits);
+		for (int i = count + digits - 1; i >= count; i--) {
+			buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	/**
+	 * The encoded "Date" line of a second.
+	 */
+	private static final class DateLine {
+
+		private final long second;
+		private final byte[] bytes;
+
+		DateLine(long second, byte[] bytes) {
+			this.second = second;
+			this.bytes = bytes;
+		}
+	}
+}
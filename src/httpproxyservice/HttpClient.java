@@ -1,10 +1,13 @@
 package httpproxyservice;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLConnection;
 import java.nio.file.Files;
 
@@ -37,6 +40,11 @@ public class HttpClient {
 	 */
 	private String host;
 
+	/**
+	 * HTTP server port
+	 */
+	private int port;
+
 	/**
 	 * My socket to the world.
 	 */
@@ -48,14 +56,9 @@ public class HttpClient {
 	private BufferedOutputStream ostream = null;
 
 	/**
-	 * Input stream from the socket.
-	 */
-	private BufferedInputStream istream = null;
-
-	/**
-	 * StringBuffer storing the header of the response from server.
+	 * Input stream from the socket, which also parses the header of response.
 	 */
-	private StringBuilder header = null;
+	private HttpMessageReader istream = null;
 
 	/**
 	 * StringBuffer storing the content of the response from server.
@@ -66,15 +69,57 @@ public class HttpClient {
 	/**
 	 * String to represent the status code of response from HTTP server
 	 */
-	private String statusCode = null;
+	private int statusCode = -1;
+
+	/**
+	 * The length of content in the response, or -1 if it is unknown.
+	 */
+	private long contentLength = -1;
+
+	/**
+	 * The bytes of content not read yet, or -1 if the length is unknown.
+	 */
+	private long remaining = 0;
+
+	/**
+	 * The decoder of a chunked content, or null if the content is not chunked.
+	 */
+	private ChunkedInputStream chunked = null;
+
+	/**
+	 * Whether the connection was closed before the whole content arrived.
+	 */
+	private boolean truncated = false;
+
+	/**
+	 * Whether the server keeps the connection open after the response.
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * The number of responses received on this connection.
+	 */
+	private int exchanges = 0;
 
 	/**
 	 * HttpClient constructor;
 	 */
 	public HttpClient() {
-		header = new StringBuilder();
 		content = new StringBuilder();
 	}
+
+	/**
+	 * HttpClient on streams instead of a socket, e.g. to measure the handling
+	 * of responses without a server.
+	 * 
+	 * @param input  The stream of responses
+	 * @param output The stream of requests
+	 */
+	HttpClient(InputStream input, OutputStream output) {
+		this();
+		ostream = new BufferedOutputStream(output);
+		istream = new HttpMessageReader(input);
+	}
 	
 	/**
 	 * connects to the input host on the port
@@ -87,6 +132,7 @@ public class HttpClient {
 	public void connect(String host, int port) throws IOException {
 
 		this.host = host;
+		this.port = port;
 
 		/**
 		 * Open my socket to the specified host at the default port.
@@ -101,7 +147,17 @@ public class HttpClient {
 		/**
 		 * Create the input stream.
 		 */
-		istream = new BufferedInputStream(socket.getInputStream());
+		istream = new HttpMessageReader(socket.getInputStream());
+	}
+
+	/**
+	 * Set how long a read waits for the server before it fails.
+	 * 
+	 * @param millis The timeout in milliseconds, 0 waits forever
+	 * @throws IOException If an error occurred in the connection
+	 */
+	public void setTimeout(int millis) throws IOException {
+		socket.setSoTimeout(millis);
 	}
 
 	/**
@@ -112,13 +168,32 @@ public class HttpClient {
 	 * @throws IOException If an error occurred when send response
 	 */
 	public void processGetRequest(String request, boolean keepAlive) throws IOException {
+		sendGetRequest(request, keepAlive);
+		/**
+		 * waiting for the response.
+		 */
+		processResponse("GET");
+	}
+
+	/**
+	 * send the input GET request without waiting for the response.
+	 * 
+	 * @param request   The first line of request
+	 * @param keepAlive The "Connection" attribute
+	 * @param fields    Other attributes of request, e.g. "If-None-Match: ..."
+	 * @throws IOException If an error occurred when send request
+	 */
+	public void sendGetRequest(String request, boolean keepAlive, String... fields) throws IOException {
 		/**
 		 * Send the request to the server.
 		 */
 		request += CRLF;
 		request += "Host: " + this.host + CRLF;
 		request += "User-Agent: MyClient-1.0" + CRLF;
-		request += "Accept-Encoding: ISO-8859-1" + CRLF;
+		request += "Accept-Encoding: identity" + CRLF; // The content is cached and compressed by the proxy
+		for (String field : fields) {
+			request += field + CRLF;
+		}
 		if (keepAlive) {
 			request += "Connection: keep-alive" + CRLF + CRLF;
 		} else {
@@ -127,10 +202,64 @@ public class HttpClient {
 		byte[] buffer = request.getBytes(ENCODING);
 		ostream.write(buffer, 0, request.length());
 		ostream.flush();
-		/**
-		 * waiting for the response.
-		 */
-		processResponse("GET");
+	}
+
+	/**
+	 * send the header of a PUT request without waiting for the response. The
+	 * content is written to the stream returned, which is sent in chunks if its
+	 * length is unknown; closing the stream ends the content and flushes it, the
+	 * connection is kept open.
+	 * 
+	 * @param request   The first line of request
+	 * @param length    The length of content, or -1 if it is unknown
+	 * @param keepAlive The "Connection" attribute
+	 * @param fields    Other attributes of request, e.g. "Content-Type: ..."
+	 * @return The stream of content
+	 * @throws IOException If an error occurred when send request
+	 */
+	public OutputStream sendPutRequest(String request, long length, boolean keepAlive, String... fields)
+			throws IOException {
+		StringBuilder putMessage = new StringBuilder();
+		putMessage.append(request + CRLF);
+		putMessage.append("Host: " + this.host + CRLF);
+		putMessage.append("User-Agent: MyClient-1.0" + CRLF);
+		for (String field : fields) {
+			putMessage.append(field + CRLF);
+		}
+		if (length < 0) {
+			putMessage.append("Transfer-Encoding: chunked" + CRLF);
+		} else {
+			putMessage.append("Content-Length: " + length + CRLF);
+		}
+		if (keepAlive) {
+			putMessage.append("Connection: keep-alive" + CRLF + CRLF);
+		} else {
+			putMessage.append("Connection: close" + CRLF + CRLF);
+		}
+		ostream.write(putMessage.toString().getBytes(ENCODING));
+		if (length < 0) {
+			return new ChunkedOutputStream(ostream);
+		}
+		return new FilterOutputStream(ostream) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush(); // The connection is kept
+			}
+		};
+	}
+
+	/**
+	 * send the requests written but not sent yet.
+	 * 
+	 * @throws IOException If an error occurred when send request
+	 */
+	public void flush() throws IOException {
+		ostream.flush();
 	}
 
 	/**
@@ -157,7 +286,6 @@ public class HttpClient {
 					putMessage.append(request);
 					putMessage.append(CRLF);
 					putMessage.append("User-Agent: MyClient-1.0" + CRLF);
-					putMessage.append("Accept-Encoding: ISO-8859-1" + CRLF);
 					putMessage.append(
 							"Content-Type: " + URLConnection.getFileNameMap().getContentTypeFor(fileName) + CRLF);
 					putMessage.append("Content-Length: " + file.length() + CRLF);
@@ -192,59 +320,93 @@ public class HttpClient {
 	 * @throws IOException If an error occurred when receive response
 	 */
 	public void processResponse(String requestType) throws IOException {
-		int last = 0, c = 0;
-		/**
-		 * Process the header and add it to the header StringBuffer.
-		 */
-
-		boolean inHeader = true; // loop control
-		while (inHeader && ((c = istream.read()) != -1)) {
-			switch (c) {
-			case '\r':
-				break;
-			case '\n':
-				if (c == last) {
-					inHeader = false;
-					break;
-				}
-				last = c;
-				header.append("\r\n");
-				break;
-			default:
-				last = c;
-				header.append((char) c);
-			}
-		}
-		header.append(CRLF);
+		receiveHeader();
 		if (requestType.equals("GET")) {
 			/**
 			 * Read the contents and add it to the response StringBuffer.
 			 */
-			String[] tokens = getHeader().split("\\s+");
-			statusCode = tokens[1];
-			int fileLength = 0;
-			for (int i = 0; i < tokens.length; i++) {
-				if (tokens[i].equals("Content-Length:")) {
-					fileLength = Integer.parseInt(tokens[i + 1]);
-					// Get the length of file
-					break;
-				}
-			}
-			content = new StringBuilder(fileLength + 1);
-			int revBytes = 0;
+			content = new StringBuilder((int) Math.min(Math.max(contentLength, 0) + 1, Integer.MAX_VALUE));
 			int len = 0;
 			byte[] buffer = new byte[BUFFER_SIZE];
-			while ((len = istream.read(buffer, 0, BUFFER_SIZE)) > 0) {
-				// Get the data of the specified length from server
-				revBytes += len;
+			while ((len = readContent(buffer)) != -1) {
 				content.append(new String(buffer, 0, len, ENCODING));
-				if (revBytes >= fileLength) {
-					break;
-				}
+			}
+		} else {
+			keepAlive = false; // The content has not been read
+		}
+	}
 
+	/**
+	 * receive the header of server response, the content is left to be read by
+	 * readContent().
+	 * 
+	 * @throws IOException If an error occurred when receive response
+	 */
+	public void receiveHeader() throws IOException {
+		if (!istream.readHead()) {
+			throw new IOException("Connection closed by server");
+		}
+		statusCode = istream.getStatusCode();
+		keepAlive = istream.isResponseVersion("HTTP/1.1");
+		if (istream.headerContains("Connection", "close")) {
+			keepAlive = false;
+		} else if (istream.headerContains("Connection", "keep-alive")) {
+			keepAlive = true;
+		}
+		chunked = null;
+		if (statusCode / 100 == 1 || statusCode == 204 || statusCode == 304) {
+			contentLength = 0; // These responses never have a content
+		} else if (istream.headerContains("Transfer-Encoding", "chunked")) {
+			contentLength = -1;
+			chunked = new ChunkedInputStream(istream);
+		} else {
+			// Get the length of file
+			contentLength = istream.getHeaderLong("Content-Length", -1);
+			if (contentLength < 0) {
+				// The content ends when the server closes the connection, which can not be reused
+				keepAlive = false;
 			}
 		}
+		remaining = contentLength;
+		truncated = false;
+		exchanges++;
+	}
 
+	/**
+	 * read the next part of content received after receiveHeader().
+	 * 
+	 * @param buffer The buffer to fill
+	 * @return The number of bytes read, or -1 at the end of content
+	 * @throws IOException If an error occurred when receive response
+	 */
+	public int readContent(byte[] buffer) throws IOException {
+		if (remaining == 0) {
+			return -1;
+		}
+		if (chunked != null) {
+			int len = chunked.read(buffer, 0, buffer.length);
+			if (len == -1) {
+				remaining = 0;
+				if (!chunked.isComplete()) {
+					keepAlive = false;
+					truncated = true;
+				}
+			}
+			return len;
+		}
+		int max = remaining < 0 ? buffer.length : (int) Math.min(buffer.length, remaining);
+		int len = istream.read(buffer, 0, max);
+		if (len <= 0) {
+			// The end of a content without length, or a truncated one
+			keepAlive = false;
+			truncated = remaining > 0;
+			remaining = 0;
+			return -1;
+		}
+		if (remaining > 0) {
+			remaining -= len;
+		}
+		return len;
 	}
 
 	/**
@@ -253,7 +415,7 @@ public class HttpClient {
 	 * @return header
 	 */
 	public String getHeader() {
-		return header.toString();
+		return istream == null ? "" : istream.getHead();
 	}
 
 	/**
@@ -271,14 +433,143 @@ public class HttpClient {
 	 * @return StatusCode
 	 */
 	public String getStatusCode() {
+		return String.valueOf(statusCode);
+	}
+
+	/**
+	 * Get the status code of response as a number
+	 * 
+	 * @return StatusCode, or -1 if no response has been received
+	 */
+	public int getStatus() {
 		return statusCode;
 	}
 
+	/**
+	 * Get an attribute of the response header.
+	 * 
+	 * @param name The name of attribute, without the colon
+	 * @return value, or null if the header does not have it
+	 */
+	public String getHeaderField(String name) {
+		return istream.getHeader(name);
+	}
+
+	/**
+	 * Write the response header, except the given attributes and the blank line
+	 * closing it.
+	 * 
+	 * @param out     The stream to write to
+	 * @param skipped The names of attributes left out
+	 * @throws IOException
+	 */
+	public void writeHeader(OutputStream out, String... skipped) throws IOException {
+		istream.writeHead(out, skipped);
+	}
+
+	/**
+	 * Get the length of content in the response.
+	 * 
+	 * @return length, or -1 if it is unknown
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Whether the response has a chunked content, whose length is only known at
+	 * its end.
+	 * 
+	 * @return true if the content is chunked
+	 */
+	public boolean isChunked() {
+		return chunked != null;
+	}
+
+	/**
+	 * Whether the whole content has been read, up to its length, its last chunk
+	 * or the close of connection.
+	 * 
+	 * @return true if the content is complete
+	 */
+	public boolean isContentComplete() {
+		return remaining == 0 && !truncated;
+	}
+
+	/**
+	 * Get the host of server.
+	 * 
+	 * @return host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Get the port of server.
+	 * 
+	 * @return port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Whether the connection can be used for another request.
+	 * 
+	 * @return true if the server keeps the connection open
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Whether a response has been received on this connection before.
+	 * 
+	 * @return true if the connection has been reused
+	 */
+	public boolean isReused() {
+		return exchanges > 0;
+	}
+
+	/**
+	 * Check that an idle connection has not been closed by the server and holds
+	 * no unexpected bytes.
+	 * 
+	 * @param probe Whether to wait a moment for the server to close the connection
+	 * @return true if the connection can be used
+	 */
+	public boolean isHealthy(boolean probe) {
+		if (socket == null || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			if (istream.available() > 0) {
+				return false;
+			}
+			if (probe) {
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+				try {
+					istream.read();
+					return false; // The connection is closed or holds unexpected bytes
+				} catch (SocketTimeoutException ex) {
+					return true; // Nothing to read, the connection is still open
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			}
+			return true;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
 	/**
 	 * Clear the header of response.
 	 */
 	public void clearHeader() {
-		header.setLength(0);
+		istream.clearHead();
 	}
 
 	/**
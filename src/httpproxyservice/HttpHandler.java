@@ -1,15 +1,15 @@
 package httpproxyservice;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.Socket;
-import java.net.URLConnection;
-import java.nio.file.Files;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,37 +22,53 @@ import java.util.logging.Logger;
 public class HttpHandler implements Runnable {
 
 	private static final String CRLF = "\r\n";
-	private static final String ENCODING = "ISO-8859-1";
+	private static final byte[] CONTINUE = ("HTTP/1.1 100 Continue" + CRLF + CRLF).getBytes();
 	private final Socket socket;
+	private final SocketChannel channel; // The channel of socket, null if it has none
 	private final Logger logger; // The log file
 	private final String logHeader; // The header of log term
+	private final String remoteAddress; // The address of client
+	private final boolean verbose; // Whether the requests are written to the log file
+	private final AccessLog accessLog; // null if disabled
 	private final String rootpath;
 	private final String savepath;
-	private StringBuilder request; // Save the request from the client
-	private final BufferedInputStream inputStream;
-	private final BufferedOutputStream outputStream;
-	private String requestLine; // The first line of request
+	private final HttpMessageReader request; // Read the requests from the client
+	private final ResponseOutputStream outputStream;
+	private final HeaderWriter headerWriter = new HeaderWriter();
 	private boolean keepAlive; // The "Connection" attribute
+	private int status; // The status of the response sent, for the access log
+	private long sentLength; // The length of the content sent
+	private final boolean syncUploads; // Whether uploads are forced to the disk
+	private final MappedFileCache mappedFiles; // null if disabled
 
 	/**
 	 * @param socket   The socket with client
 	 * @param rootpath The root path of server
-	 * @param logger   Log file
+	 * @param options     The switches of server
+	 * @param mappedFiles The large files mapped into memory, or null
+	 * @param accessLog   The log of requests, or null
+	 * @param logger      Log file
 	 * @throws IOException 
 	 */
-	public HttpHandler(Socket socket, String rootpath, Logger logger) throws IOException {
+	public HttpHandler(Socket socket, String rootpath, ServerOptions options, MappedFileCache mappedFiles,
+			AccessLog accessLog, Logger logger) throws IOException {
 		this.socket = socket;
+		this.channel = socket.getChannel();
 		this.rootpath = rootpath;
 		this.savepath = rootpath + "\\saving";
+		this.syncUploads = options.has("sync-uploads");
+		this.mappedFiles = mappedFiles;
+		this.accessLog = accessLog;
+		this.verbose = options.has("log-requests");
 		this.logger = logger;
-		this.request = new StringBuilder();
-		this.requestLine = "";
 		this.keepAlive = true;
-		this.inputStream = new BufferedInputStream(socket.getInputStream());
-		this.outputStream = new BufferedOutputStream(socket.getOutputStream());
-		this.logHeader = "Client on " + this.socket.getInetAddress().getHostAddress() + " <" + this.socket.getPort()
-				+ ">: ";
-		this.logger.info(this.logHeader + "Connect successfully!");
+		this.request = new HttpMessageReader(socket.getInputStream());
+		this.outputStream = new ResponseOutputStream(socket.getOutputStream());
+		this.remoteAddress = socket.getInetAddress().getHostAddress();
+		this.logHeader = "Client on " + remoteAddress + " <" + this.socket.getPort() + ">: ";
+		if (verbose) {
+			this.logger.info(this.logHeader + "Connect successfully!");
+		}
 	}
 
 	@Override
@@ -62,20 +78,43 @@ public class HttpHandler implements Runnable {
 	public void run() {
 		try {
 			while (keepAlive) {
-				receiveRequest(); // receive request
-				this.logger.info('\n' + this.logHeader + request.toString());
-				if (request.indexOf("GET") != -1) {
+				if (!request.readHead()) { // receive request
+					// The client has closed the connection
+					close();
+					break;
+				}
+				long start = System.currentTimeMillis();
+				long begin = System.nanoTime();
+				status = 0;
+				sentLength = -1;
+				if (verbose) {
+					this.logger.info('\n' + this.logHeader + request.getHead());
+				}
+				switch (request.getMethod()) {
+				case GET:
 					doGetResponse();
-				} else if (request.indexOf("PUT") != -1) {
-					// System.out.println(request.toString());
+					break;
+				case PUT:
 					doPutResponse();
-				} else { // Only respond to GET and PUT
+					break;
+				default: // Only respond to GET and PUT
 					this.logger.log(Level.WARNING, this.logHeader + "Incorrert Request");
 					String filePath = rootpath + "\\response\\400.html";
 					File file = new File(filePath);
-					sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+					sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
 							file.length(), false);
 					sendContent(filePath);
+					close();
+					keepAlive = false;
+				}
+				if (keepAlive && request.available() == 0) {
+					// The responses to pipelined requests are sent together
+					outputStream.flush();
+				}
+				if (accessLog != null) {
+					accessLog.log(start, remoteAddress, socket.getPort(),
+							request.getMethod().name(), request.getUri(), status, sentLength,
+							(System.nanoTime() - begin) / 1000);
 				}
 			}
 
@@ -90,46 +129,64 @@ public class HttpHandler implements Runnable {
 	 * @throws IOException
 	 */
 	private void doGetResponse() throws IOException {
-		String[] tokens = requestLine.split("\\s+");
 		String filePath = null;
 		File file = null;
 		keepAlive = false;
 
-		if (tokens.length != 3) {
+		if (!request.isWellFormed()) {
 			this.logger.log(Level.WARNING, this.logHeader + "Incorrect Request! Missing necessary parts");
 			filePath = rootpath + "\\response\\400.html";
 			file = new File(filePath);
-			sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+			sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
 					file.length(), keepAlive);
 			sendContent(filePath);
 		} else {
 
-			String url = tokens[1];
-			String version = tokens[2];
+			String url = request.getUri();
+			keepAlive = request.headerContains("Connection", "keep-alive");
 
-			tokens = request.toString().split("\\s+");
-			for (int i = 0; i < tokens.length; i++) {
-				if (tokens[i].equals("Connection:")) {
-					// Get the "Connection"
-					keepAlive = tokens[i + 1].equals("keep-alive");
-					break;
-				}
-			}
-
-			if (version.equals("HTTP/1.0") || version.equals("HTTP/1.1")) {
+			if (request.isRequestVersion("HTTP/1.0") || request.isRequestVersion("HTTP/1.1")) {
 				if (url.endsWith("/")) {
 					url = url + "index.html";
 				}
 				filePath = rootpath + url.replaceAll("/", "\\\\");
 				file = new File(filePath);
 				if (file.exists()) {
-					sendHeader("HTTP/1.1 200 OK", URLConnection.getFileNameMap().getContentTypeFor(filePath),
-							file.length(), keepAlive);
-					sendContent(filePath);
+					String contentType = HeaderWriter.contentType(filePath);
+					long lastModified = file.lastModified();
+					String etag = Validators.etag(file);
+					List<long[]> ranges = ByteRanges.parse(request, file.length(), etag, lastModified);
+					List<String> fields = new ArrayList<String>(5);
+					fields.add("Last-Modified: " + Validators.formatDate(lastModified));
+					fields.add("Accept-Ranges: bytes");
+					File body = file;
+					if (Compression.isCompressible(contentType)) {
+						fields.add(Compression.VARY);
+						// Ranges are sent of the identity
+						String coding = ranges == null ? Compression.negotiate(request) : null;
+						File variant = coding == null ? null
+								: Compression.variant(file, new File(variantPath(url, coding)), coding, etag);
+						if (variant != null) {
+							body = variant;
+							etag = Compression.etag(etag, coding);
+							fields.add("Content-Encoding: " + coding);
+						}
+					}
+					fields.add("ETag: " + etag);
+					String[] attributes = fields.toArray(new String[0]);
+					if (Validators.isNotModified(request, etag, lastModified)) {
+						// The client has the file already
+						sendHeader("HTTP/1.1 304 Not Modified", contentType, body.length(), keepAlive, attributes);
+					} else if (ranges != null) {
+						sendRanges(file, contentType, ranges, attributes);
+					} else {
+						sendHeader("HTTP/1.1 200 OK", contentType, body.length(), keepAlive, attributes);
+						sendContent(body.getPath());
+					}
 				} else {
 					filePath = rootpath + "\\response\\404.html";
 					file = new File(filePath);
-					sendHeader("HTTP/1.1 404 Not Found", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+					sendHeader("HTTP/1.1 404 Not Found", HeaderWriter.contentType(filePath),
 							file.length(), keepAlive);
 					sendContent(filePath);
 				}
@@ -137,103 +194,147 @@ public class HttpHandler implements Runnable {
 				this.logger.log(Level.WARNING, this.logHeader + "HTTP version not accepted");
 				filePath = rootpath + "\\response\\400.html";
 				file = new File(filePath);
-				sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+				sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
 						file.length(), keepAlive);
 				sendContent(filePath);
 			}
 		}
 		if (!keepAlive) {
 			// If Connection is not keep-alive, close the connection with client.
-			inputStream.close();
-			outputStream.close();
-			socket.close();
+			close();
+		}
+	}
+
+	/**
+	 * @param url    The URL of request
+	 * @param coding The coding of variant
+	 * @return The path of the compressed variant of file
+	 */
+	private String variantPath(String url, String coding) {
+		return rootpath + "\\.variants" + url.replaceAll("/", "\\\\") + Compression.suffix(coding);
+	}
+
+	/**
+	 * send the ranges of file asked for, or "416 Range Not Satisfiable" if none
+	 * of them can be satisfied. Several ranges are sent as a multipart content.
+	 * 
+	 * @param file
+	 * @param contentType
+	 * @param ranges      The first and last byte of each range
+	 * @param fields      Other attributes of header
+	 * @throws IOException
+	 */
+	private void sendRanges(File file, String contentType, List<long[]> ranges, String... fields)
+			throws IOException {
+		long length = file.length();
+		if (ranges.isEmpty()) {
+			sendHeader("HTTP/1.1 416 Range Not Satisfiable", contentType, 0, keepAlive,
+					with(fields, ByteRanges.unsatisfiedRange(length)));
+			return;
+		}
+		ByteBuffer mapped = mappedFiles == null ? null : mappedFiles.get(file);
+		try (FileChannel fileChannel = mapped == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+				: null) {
+			if (ranges.size() == 1) {
+				long[] range = ranges.get(0);
+				sendHeader("HTTP/1.1 206 Partial Content", contentType, range[1] - range[0] + 1, keepAlive,
+						with(fields, ByteRanges.contentRange(range, length)));
+				sendPart(fileChannel, mapped, range);
+				return;
+			}
+			String boundary = ByteRanges.boundary();
+			sendHeader("HTTP/1.1 206 Partial Content", ByteRanges.multipartType(boundary),
+					ByteRanges.multipartLength(boundary, contentType, ranges, length), keepAlive, fields);
+			for (long[] range : ranges) {
+				outputStream.write(ByteRanges.partHeader(boundary, contentType, range, length));
+				sendPart(fileChannel, mapped, range);
+			}
+			outputStream.write(ByteRanges.closing(boundary));
+		}
+	}
+
+	/**
+	 * send a range of file from its mapping, or from the file if it has none
+	 * 
+	 * @param fileChannel The file, null if it is mapped
+	 * @param mapped      The mapping of file, or null
+	 * @param range       The first and last byte
+	 * @throws IOException
+	 */
+	private void sendPart(FileChannel fileChannel, ByteBuffer mapped, long[] range) throws IOException {
+		if (mapped != null) {
+			ByteBuffer part = mapped.duplicate();
+			part.position((int) range[0]).limit((int) range[1] + 1);
+			ContentSender.sendBuffer(part, outputStream, channel);
 		} else {
-			request.setLength(0);
-			// clear the request
+			ContentSender.sendRange(fileChannel, range[0], range[1] - range[0] + 1, outputStream, channel);
 		}
 	}
 
 	/**
-	 * handle the PUT request
+	 * @return The attributes with one more
+	 */
+	private static String[] with(String[] fields, String field) {
+		String[] more = Arrays.copyOf(fields, fields.length + 1);
+		more[fields.length] = field;
+		return more;
+	}
+
+	/**
+	 * handle the PUT request. The content is streamed to the file, and the
+	 * response is sent once it has been received.
 	 */
 	private void doPutResponse() {
 		try {
-			String[] tokens = request.toString().split("\\s+");
-			int fileLength = 0;
-			String contentType = null;
-			keepAlive = false;
-			for (int i = 0; i < tokens.length; i++) {
-				// resolve the request
-				if (tokens[i].equals("Content-Length:")) {
-					fileLength = Integer.parseInt(tokens[i + 1]);
-				} else if (tokens[i].equals("Content-Type:")) {
-					contentType = tokens[i + 1];
-				} else if (tokens[i].equals("Connection:")) {
-					keepAlive = tokens[i + 1].equals("keep-alive");
-				}
+			keepAlive = request.headerContains("Connection", "keep-alive");
+			if (!UploadReceiver.hasValidLength(request)) {
+				this.logger.log(Level.WARNING, this.logHeader + "Malformed Content-Length");
+				String filePath = rootpath + "\\response\\400.html";
+				sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
+						new File(filePath).length(), false);
+				sendContent(filePath);
+				keepAlive = false;
+				close();
+				return;
 			}
-
-			sendHeader("HTTP/1.1 200 OK", contentType, fileLength, keepAlive);
-
-			String path = savepath + tokens[1].replaceAll("/", "\\\\");
+			String path = savepath + request.getUri().replaceAll("/", "\\\\");
 			File file = new File(path);
-			FileOutputStream fos = new FileOutputStream(file);
-
-			byte[] buffer = new byte[fileLength];
-			int revBytes = 0;
-			int bytes;
-			while ((bytes = inputStream.read(buffer, revBytes, fileLength - revBytes)) > 0) {
-				revBytes += bytes;
-
+			boolean created = !file.exists();
+			if (request.headerContains("Expect", "100-continue")) {
+				// The client waits for this before it sends the content
+				outputStream.write(CONTINUE);
+				outputStream.flush();
 			}
-			fos.write(buffer);
-			fos.flush();
-			fos.close();
+			if (UploadReceiver.receive(request, file, syncUploads) < 0) {
+				this.logger.log(Level.WARNING, this.logHeader + "Upload incomplete, the client has closed");
+				keepAlive = false;
+				close();
+				return;
+			}
+			sendHeader(created ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK", "text/plain", 0, keepAlive);
 			if (!keepAlive) {
-				inputStream.close();
-				outputStream.close();
-				socket.close();
-			} else {
-				request.setLength(0);
+				close();
 			}
 		} catch (IOException ex) {
 			this.logger.log(Level.SEVERE, this.logHeader + "Can not receive file", ex);
+			keepAlive = false; // The rest of content can not be skipped
+			try {
+				close();
+			} catch (IOException closeEx) {
+				this.logger.log(Level.WARNING, this.logHeader + "Close Error", closeEx);
+			}
 		}
 	}
 
 	/**
-	 * resolve request
+	 * close the connection with client
 	 * 
 	 * @throws IOException
 	 */
-	private void receiveRequest() throws IOException {
-		boolean finishFirst = false;
-		boolean finishAll = false;
-		boolean finishLast = false;
-		int c = 0;
-		while (!finishAll && (c = inputStream.read()) != -1) {
-			switch (c) {
-			case '\r':
-				break;
-			case '\n':
-				if (!finishFirst) {
-					requestLine = new String(request.toString().getBytes(), ENCODING);
-					// Get the first line of request
-					finishFirst = true;
-				}
-				if (!finishLast) {
-					request.append("\r\n");
-					finishLast = true;
-				} else if (finishLast) {
-					finishAll = true;
-				}
-				break;
-			default:
-				request.append((char) c);
-				finishLast = false;
-				break;
-			}
-		}
+	private void close() throws IOException {
+		outputStream.close();
+		request.close();
+		socket.close();
 	}
 
 	/**
@@ -243,26 +344,14 @@ public class HttpHandler implements Runnable {
 	 * @param contentType
 	 * @param length
 	 * @param keepAlive
+	 * @param fields    Other attributes of header, e.g. "ETag: ..."
 	 */
-	private void sendHeader(String responseCode, String contentType, long length, boolean keepAlive) {
+	private void sendHeader(String responseCode, String contentType, long length, boolean keepAlive,
+			String... fields) {
+		status = Integer.parseInt(responseCode.substring(9, 12)); // "HTTP/1.1 200 OK"
+		sentLength = length;
 		try {
-			StringBuilder response = new StringBuilder();
-			response.append(responseCode + CRLF);
-			response.append("Date: " + new Date().toString() + CRLF);
-			response.append("Server: MyHttpServer/1.0" + CRLF);
-			response.append("Content-Length: " + length + CRLF);
-			response.append("Content-type: " + contentType + CRLF);
-			if (keepAlive) {
-				response.append("Connection: keep-alive" + CRLF + CRLF);
-			} else {
-				response.append("Connection: close" + CRLF + CRLF);
-			}
-
-			byte[] buffer = response.toString().getBytes(ENCODING);
-			outputStream.write(buffer, 0, buffer.length);
-			outputStream.flush();
-		} catch (UnsupportedEncodingException ex) {
-			this.logger.log(Level.SEVERE, "Unsupported Encoding", ex);
+			headerWriter.write(outputStream, responseCode, contentType, length, keepAlive, fields);
 		} catch (IOException ex) {
 			this.logger.log(Level.SEVERE, "Send Header Error", ex);
 		}
@@ -270,16 +359,20 @@ public class HttpHandler implements Runnable {
 	}
 
 	/**
-	 * send the file to client
+	 * send the file to client, from its mapping if it is a large file requested
+	 * often
 	 * 
 	 * @param filePath
 	 */
 	private void sendContent(String filePath) {
 		try {
 			File file = new File(filePath);
-			byte[] sendData = Files.readAllBytes(file.toPath());
-			outputStream.write(sendData);
-			outputStream.flush();
+			ByteBuffer mapped = mappedFiles == null ? null : mappedFiles.get(file);
+			if (mapped != null) {
+				ContentSender.sendBuffer(mapped, outputStream, channel);
+			} else {
+				ContentSender.sendFile(file, outputStream, channel);
+			}
 		} catch (IOException ex) {
 			this.logger.log(Level.SEVERE, "Can not send file", ex);
 		}
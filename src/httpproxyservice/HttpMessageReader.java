@@ -0,0 +1,551 @@
+package httpproxyservice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ *
+ * Reads HTTP messages from a connection. readHead() parses the start line and
+ * the header fields of the next request or response in place, keeping only
+ * their offsets in a byte buffer that is reused for every message, and the
+ * stream then returns the content that follows the head. Bytes read ahead
+ * belong to the next message and are kept for it, so pipelined messages are
+ * not lost. Lines may end with CRLF or a bare LF.
+ *
+ * @author Li Taiji
+ * @date 2019-12-12
+ *
+ */
+public class HttpMessageReader extends InputStream {
+
+	/**
+	 * The request methods told apart by the handlers.
+	 */
+	public enum Method {
+		GET, HEAD, PUT, POST, DELETE, OTHER
+	}
+
+	private static final Method[] METHODS = Method.values();
+	private static final int INITIAL_SIZE = 8192;
+	private static final int MAX_HEAD = 64 * 1024; // The largest head accepted
+	private final InputStream in;
+	private byte[] buffer;
+	private int pos; // The next byte to return
+	private int limit; // The end of bytes read
+	private int headEnd; // The end of head, 0 if no head has been parsed
+	private final int[] tokens = new int[6]; // Start and end of the three parts of start line
+	private int tokenCount;
+	private int[] fields = new int[4 * 32]; // Name start, name end, value start, value end
+	private int fieldCount;
+
+	/**
+	 * @param in The stream of connection
+	 */
+	public HttpMessageReader(InputStream in) {
+		this.in = in;
+		this.buffer = new byte[INITIAL_SIZE];
+	}
+
+	/**
+	 * Read and parse the head of next message. The content of previous message
+	 * must have been read.
+	 *
+	 * @return false if the connection was closed before the message began
+	 * @throws IOException If the head is too large or the connection is closed
+	 *                     within it
+	 */
+	public boolean readHead() throws IOException {
+		// Drop the previous message, keep the bytes read after it
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		headEnd = 0;
+		tokenCount = 0;
+		fieldCount = 0;
+		int lineStart = 0;
+		int scan = 0;
+		boolean startLine = true;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buffer[scan] != '\n') {
+					continue;
+				}
+				int lineEnd = scan > lineStart && buffer[scan - 1] == '\r' ? scan - 1 : scan;
+				if (lineEnd > lineStart) {
+					if (startLine) {
+						parseStartLine(lineStart, lineEnd);
+						startLine = false;
+					} else {
+						parseField(lineStart, lineEnd);
+					}
+				} else if (!startLine) {
+					// The blank line after the header fields
+					headEnd = scan + 1;
+					pos = headEnd;
+					return true;
+				}
+				lineStart = scan + 1; // Empty lines before the start line are ignored
+			}
+			if (limit == buffer.length) {
+				if (buffer.length >= MAX_HEAD) {
+					throw new IOException("Header too large");
+				}
+				byte[] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, limit);
+				buffer = larger;
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n == -1) {
+				if (startLine) {
+					limit = 0;
+					return false;
+				}
+				throw new EOFException("Connection closed within the header");
+			}
+			limit += n;
+		}
+	}
+
+	/**
+	 * Split the start line into at most three parts, the last part takes the
+	 * rest of line (the reason phrase of a response may contain spaces).
+	 */
+	private void parseStartLine(int start, int end) {
+		int i = start;
+		while (i < end && tokenCount < 3) {
+			while (i < end && buffer[i] == ' ') {
+				i++;
+			}
+			if (i == end) {
+				break;
+			}
+			int tokenStart = i;
+			if (tokenCount < 2) {
+				while (i < end && buffer[i] != ' ') {
+					i++;
+				}
+			} else {
+				i = end;
+			}
+			tokens[2 * tokenCount] = tokenStart;
+			tokens[2 * tokenCount + 1] = trimEnd(tokenStart, i);
+			tokenCount++;
+		}
+	}
+
+	private void parseField(int start, int end) {
+		int colon = start;
+		while (colon < end && buffer[colon] != ':') {
+			colon++;
+		}
+		if (colon == end) {
+			return; // Not a header field
+		}
+		int valueStart = colon + 1;
+		while (valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+			valueStart++;
+		}
+		if (4 * fieldCount == fields.length) {
+			int[] larger = new int[fields.length * 2];
+			System.arraycopy(fields, 0, larger, 0, fields.length);
+			fields = larger;
+		}
+		int index = 4 * fieldCount++;
+		fields[index] = start;
+		fields[index + 1] = trimEnd(start, colon);
+		fields[index + 2] = valueStart;
+		fields[index + 3] = trimEnd(valueStart, end);
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * @return true if the start line has its three parts
+	 */
+	public boolean isWellFormed() {
+		return tokenCount == 3;
+	}
+
+	/**
+	 * Get the method of a request.
+	 *
+	 * @return method
+	 */
+	public Method getMethod() {
+		if (tokenCount == 0) {
+			return Method.OTHER;
+		}
+		for (Method method : METHODS) {
+			if (method != Method.OTHER && equalsAscii(tokens[0], tokens[1], method.name(), false)) {
+				return method;
+			}
+		}
+		return Method.OTHER;
+	}
+
+	/**
+	 * Get the URI of a request.
+	 *
+	 * @return URI, or null if the request has none
+	 */
+	public String getUri() {
+		return tokenCount < 2 ? null : string(tokens[2], tokens[3]);
+	}
+
+	/**
+	 * Check the HTTP version of a request.
+	 *
+	 * @param version e.g. "HTTP/1.1"
+	 * @return true if the request has this version
+	 */
+	public boolean isRequestVersion(String version) {
+		return tokenCount == 3 && equalsAscii(tokens[4], tokens[5], version, false);
+	}
+
+	/**
+	 * Check the HTTP version of a response.
+	 *
+	 * @param version e.g. "HTTP/1.1"
+	 * @return true if the response has this version
+	 */
+	public boolean isResponseVersion(String version) {
+		return tokenCount > 0 && equalsAscii(tokens[0], tokens[1], version, false);
+	}
+
+	/**
+	 * Get the status code of a response.
+	 *
+	 * @return status code, or -1 if it is missing
+	 */
+	public int getStatusCode() {
+		return tokenCount < 2 ? -1 : (int) parseLong(tokens[2], tokens[3], -1);
+	}
+
+	/**
+	 * Get the start line, e.g. to forward the request.
+	 *
+	 * @return start line
+	 */
+	public String getStartLine() {
+		return tokenCount == 0 ? "" : string(tokens[0], tokens[2 * tokenCount - 1]);
+	}
+
+	/**
+	 * Find a header field, ignoring the case of name.
+	 *
+	 * @param name The name of field
+	 * @return The index of field, or -1 if the head does not have it
+	 */
+	private int findField(String name) {
+		for (int i = 0; i < 4 * fieldCount; i += 4) {
+			if (equalsAscii(fields[i], fields[i + 1], name, true)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name The name of field
+	 * @return true if the head has the field
+	 */
+	public boolean hasHeader(String name) {
+		return findField(name) != -1;
+	}
+
+	/**
+	 * Get the value of a header field.
+	 *
+	 * @param name The name of field
+	 * @return value, or null if the head does not have it
+	 */
+	public String getHeader(String name) {
+		int i = findField(name);
+		return i == -1 ? null : string(fields[i + 2], fields[i + 3]);
+	}
+
+	/**
+	 * Get the numeric value of a header field.
+	 *
+	 * @param name         The name of field
+	 * @param defaultValue The value if the field is missing or not a number
+	 * @return value
+	 */
+	public long getHeaderLong(String name, long defaultValue) {
+		int i = findField(name);
+		return i == -1 ? defaultValue : parseLong(fields[i + 2], fields[i + 3], defaultValue);
+	}
+
+	/**
+	 * Check whether the comma separated value of a header field contains a token,
+	 * ignoring case, e.g. "Connection: keep-alive".
+	 *
+	 * @param name  The name of field
+	 * @param token The token
+	 * @return true if the value contains the token
+	 */
+	public boolean headerContains(String name, String token) {
+		for (int i = 0; i < 4 * fieldCount; i += 4) {
+			if (!equalsAscii(fields[i], fields[i + 1], name, true)) {
+				continue;
+			}
+			int start = fields[i + 2];
+			int end = fields[i + 3];
+			while (start < end) {
+				int comma = start;
+				while (comma < end && buffer[comma] != ',') {
+					comma++;
+				}
+				int tokenStart = start;
+				while (tokenStart < comma && buffer[tokenStart] == ' ') {
+					tokenStart++;
+				}
+				if (equalsAscii(tokenStart, trimEnd(tokenStart, comma), token, true)) {
+					return true;
+				}
+				start = comma + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write the start line and the header fields, except the given ones, each
+	 * ended by CRLF. The blank line closing the head is not written.
+	 *
+	 * @param out     The stream to write to
+	 * @param skipped The names of fields left out
+	 * @throws IOException
+	 */
+	public void writeHead(OutputStream out, String... skipped) throws IOException {
+		if (tokenCount > 0) {
+			out.write(buffer, tokens[0], tokens[2 * tokenCount - 1] - tokens[0]);
+			out.write('\r');
+			out.write('\n');
+		}
+		fields: for (int i = 0; i < 4 * fieldCount; i += 4) {
+			for (String name : skipped) {
+				if (equalsAscii(fields[i], fields[i + 1], name, true)) {
+					continue fields;
+				}
+			}
+			out.write(buffer, fields[i], fields[i + 3] - fields[i]);
+			out.write('\r');
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Get the whole head as read, for logging.
+	 *
+	 * @return head, empty if no head has been parsed
+	 */
+	public String getHead() {
+		return string(0, headEnd);
+	}
+
+	/**
+	 * Find the GET requests pipelined after the current message among the bytes
+	 * already read, without consuming them. The scan stops at the first request
+	 * that is incomplete or is not a GET, as its content could not be skipped.
+	 * Requests for ranges are passed over, they are not answered with the whole
+	 * object.
+	 *
+	 * @param uris The list the URIs are added to
+	 * @param max  The most requests to find
+	 */
+	public void peekRequests(List<String> uris, int max) {
+		int start = pos;
+		while (uris.size() < max && start < limit) {
+			// Empty lines before the start line are ignored
+			while (start < limit && (buffer[start] == '\r' || buffer[start] == '\n')) {
+				start++;
+			}
+			if (limit - start < 4 || !equalsAscii(start, start + 4, "GET ", false)) {
+				return;
+			}
+			int end = findHeadEnd(start);
+			if (end == -1) {
+				return;
+			}
+			int uriStart = start + 4;
+			while (uriStart < end && buffer[uriStart] == ' ') {
+				uriStart++;
+			}
+			int uriEnd = uriStart;
+			while (uriEnd < end && buffer[uriEnd] != ' ' && buffer[uriEnd] != '\r' && buffer[uriEnd] != '\n') {
+				uriEnd++;
+			}
+			if (!hasField(uriEnd, end, "Range:")) {
+				uris.add(string(uriStart, uriEnd));
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * @param start A position in the start line of a head
+	 * @param end   The end of head
+	 * @param name  The name of field with the colon
+	 * @return true if a line of the head starts with the name, in any case
+	 */
+	private boolean hasField(int start, int end, String name) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\n' && i + 1 + name.length() <= end
+					&& equalsAscii(i + 1, i + 1 + name.length(), name, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param start The start of a head
+	 * @return The end of blank line closing the head, or -1 if it has not been
+	 *         read yet
+	 */
+	private int findHeadEnd(int start) {
+		for (int i = start; i < limit; i++) {
+			if (buffer[i] != '\n') {
+				continue;
+			}
+			if (i + 1 < limit && buffer[i + 1] == '\n') {
+				return i + 2;
+			}
+			if (i + 2 < limit && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+				return i + 3;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Forget the parsed head, the content still to be read is kept.
+	 */
+	public void clearHead() {
+		headEnd = 0;
+		tokenCount = 0;
+		fieldCount = 0;
+	}
+
+	private boolean equalsAscii(int start, int end, String value, boolean ignoreCase) {
+		if (end - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			int a = buffer[start + i];
+			int b = value.charAt(i);
+			if (a != b && !(ignoreCase && (a | 0x20) == (b | 0x20) && (b | 0x20) >= 'a' && (b | 0x20) <= 'z')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseLong(int start, int end, long defaultValue) {
+		if (start == end || end - start > 18) {
+			return defaultValue;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return defaultValue;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private String string(int start, int end) {
+		return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Read a line within the content, e.g. the size of a chunk. The line is read
+	 * through the buffer after the head, so the bytes following it are kept.
+	 *
+	 * @return line without its end, or null if the connection is closed first
+	 * @throws IOException If the line is too long
+	 */
+	public String readLine() throws IOException {
+		int scan = pos;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buffer[scan] == '\n') {
+					int start = pos;
+					pos = scan + 1;
+					return string(start, scan > start && buffer[scan - 1] == '\r' ? scan - 1 : scan);
+				}
+			}
+			// Keep the head, move the part of line read to its end
+			if (pos > headEnd) {
+				System.arraycopy(buffer, pos, buffer, headEnd, limit - pos);
+				scan -= pos - headEnd;
+				limit -= pos - headEnd;
+				pos = headEnd;
+			}
+			if (limit == buffer.length) {
+				if (buffer.length >= 2 * MAX_HEAD) {
+					throw new IOException("Line too long");
+				}
+				byte[] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, limit);
+				buffer = larger;
+			}
+			int n = in.read(buffer, limit, buffer.length - limit);
+			if (n == -1) {
+				return null;
+			}
+			limit += n;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (pos < limit) {
+			return buffer[pos++] & 0xff;
+		}
+		return in.read();
+	}
+
+	/**
+	 * Read the content after the head. The bytes read ahead with the head are
+	 * returned first, then the stream is read directly so the head stays
+	 * available.
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos < limit) {
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buffer, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		return in.read(b, off, len);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit - pos + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -1,16 +1,27 @@
 package httpproxyservice;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.URI;
-import java.net.URLConnection;
-import java.nio.file.Files;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,38 +33,79 @@ import java.util.logging.Logger;
 public class HttpProxyHandler implements Runnable {
 
 	private static final String CRLF = "\r\n";
-	private static final String ENCODING = "ISO-8859-1";
-	private final Socket socket;
+	private static final byte[] CONTINUE = ("HTTP/1.1 100 Continue" + CRLF + CRLF).getBytes();
+	private static final int BUFFER_SIZE = 8192; // The bytes relayed from server at a time
+	private static final byte[] KEEP_ALIVE = ("Connection: keep-alive" + CRLF + CRLF).getBytes();
+	private static final byte[] CLOSE = ("Connection: close" + CRLF + CRLF).getBytes();
+	private static final byte[] CHUNKED = ("Transfer-Encoding: chunked" + CRLF).getBytes();
+	private static final Consumer<Boolean> NO_LANDING = cached -> {
+	};
+	private final Closeable connection; // The socket or channel with client
+	private final SocketChannel channel; // The blocking channel with client, null if there is none
 	private final String logHeader; // The header of log term
+	private final String remoteAddress; // The address of client
+	private final int remotePort;
+	private final boolean verbose; // Whether the requests are written to the log file
+	private final AccessLog accessLog; // null if disabled
+	private final ProxyMetrics metrics;
 	private final String rootpath;
-	private final String savepath;
-	private StringBuilder request = null; // Save the request from the client
-	private final BufferedInputStream inputStream;
-	private final BufferedOutputStream outputStream;
-	private String requestLine; // The first line of request
+	private final HttpMessageReader request; // Read the requests from the client
+	private final ResponseOutputStream outputStream;
+	private final HeaderWriter headerWriter = new HeaderWriter();
 	private boolean keepAlive; // The "Connection" attribute
+	private int status; // The status of the response sent, for the access log
+	private long sentLength; // The length of the content sent, -1 if unknown
+	private ProxyMetrics.CacheResult cacheResult; // How the cache answered the request, null if not asked
+	private boolean sparseTooLarge; // Whether the object of a range request is too large to keep in parts
 	private final Logger logger; // The log file
-	private HttpClient httpClient;
+	private final ProxyContext context; // The state shared by handlers
+	private final long coalesceWait; // Millis to wait for the fetch of another handler
+	private final long defaultTtl; // The most millis an object without explicit expiry is fresh
+	private final int pipelineDepth; // The most pipelined requests prefetched
+	private final List<String> pipelined; // The URIs of pipelined requests
+	private final Set<String> prefetched; // The URIs already prefetched for this client
 
 	/**
-	 * @param socket   The socket with client
-	 * @param rootpath The root path of server
-	 * @param logger   Log file
+	 * @param socket  The socket with client
+	 * @param context The state of proxy server
 	 * @throws IOException 
 	 */
-	public HttpProxyHandler(Socket socket, String rootpath, Logger logger) throws IOException {
-		this.socket = socket;
-		this.rootpath = rootpath;
-		this.savepath = rootpath + "\\saving";
-		this.logger = logger;
-		this.request = new StringBuilder();
-		this.requestLine = "";
+	public HttpProxyHandler(Socket socket, ProxyContext context) throws IOException {
+		this(socket, socket.getInputStream(), socket.getOutputStream(),
+				(InetSocketAddress) socket.getRemoteSocketAddress(), context);
+	}
+
+	/**
+	 * @param connection The connection with client, closed with the streams
+	 * @param input      The stream of request
+	 * @param output     The stream of response
+	 * @param remote     The address of client
+	 * @param context    The state of proxy server
+	 */
+	HttpProxyHandler(Closeable connection, InputStream input, OutputStream output, InetSocketAddress remote,
+			ProxyContext context) {
+		this.connection = connection;
+		this.channel = connection instanceof Socket ? ((Socket) connection).getChannel() : null;
+		this.context = context;
+		this.rootpath = context.getRootpath();
+		this.logger = context.getLogger();
+		this.coalesceWait = context.getOptions().getLong("coalesce-wait", 30000);
+		this.defaultTtl = context.getOptions().getLong("default-ttl", 60000);
+		this.pipelineDepth = context.getOptions().getInt("pipeline-depth", 8);
+		this.pipelined = new ArrayList<String>();
+		this.prefetched = new HashSet<String>();
 		this.keepAlive = true;
-		this.inputStream = new BufferedInputStream(socket.getInputStream());
-		this.outputStream = new BufferedOutputStream(socket.getOutputStream());
-		this.logHeader = "Client on " + this.socket.getInetAddress().getHostAddress() + " <" + this.socket.getPort()
-				+ ">: ";
-		this.logger.info(this.logHeader + "Connect successfully!");
+		this.request = new HttpMessageReader(input);
+		this.outputStream = new ResponseOutputStream(output);
+		this.remoteAddress = remote.getAddress().getHostAddress();
+		this.remotePort = remote.getPort();
+		this.logHeader = "Client on " + remoteAddress + " <" + remotePort + ">: ";
+		this.verbose = context.getOptions().has("log-requests");
+		this.accessLog = context.getAccessLog();
+		this.metrics = context.getMetrics();
+		if (verbose) {
+			this.logger.info(this.logHeader + "Connect successfully!");
+		}
 	}
 
 	@Override
@@ -61,229 +113,1161 @@ public class HttpProxyHandler implements Runnable {
 	 * Implement run thread
 	 */
 	public void run() {
+		metrics.connectionOpened();
 		try {
 			while (keepAlive) {
-				receiveRequest(); // receive request
-				this.logger.info('\n' + this.logHeader + request.toString());
-				if (request.indexOf("GET") != -1) {
-					doGetResponse();
-				} else if (request.indexOf("PUT") != -1) {
-					doPutResponse();
-				} else { // Only respond to GET and PUT
-					this.logger.log(Level.WARNING, this.logHeader + "Incorrert Request");
-					String filePath = rootpath + "\\response\\400.html";
-					File file = new File(filePath);
-					sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
-							file.length(), false);
-					sendContent(filePath);
-				}
+				handleRequest();
 			}
 
 		} catch (IOException ex) {
 			this.logger.log(Level.WARNING, this.logHeader + "Resolve Request Error", ex);
+			closeQuietly(connection); // A response may have been cut off
+		} finally {
+			metrics.connectionClosed();
 		}
 	}
 
+	/**
+	 * receive and answer one request
+	 * 
+	 * @return true if the connection is kept for the next request
+	 * @throws IOException
+	 */
+	boolean handleRequest() throws IOException {
+		if (!request.readHead()) { // receive request
+			// The client has closed the connection
+			keepAlive = false;
+			close();
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		long begin = System.nanoTime();
+		status = 0;
+		sentLength = -1;
+		cacheResult = null;
+		if (verbose) {
+			this.logger.info('\n' + this.logHeader + request.getHead());
+		}
+		switch (request.getMethod()) {
+		case GET:
+			prefetch();
+			doGetResponse();
+			break;
+		case PUT:
+			doPutResponse();
+			break;
+		default: // Only respond to GET and PUT
+			this.logger.log(Level.WARNING, this.logHeader + "Incorrert Request");
+			String filePath = rootpath + "\\response\\400.html";
+			File file = new File(filePath);
+			sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
+					file.length(), false);
+			sendContent(filePath);
+			keepAlive = false;
+			close();
+		}
+		if (keepAlive && !hasBufferedInput()) {
+			// The responses to pipelined requests are sent together
+			outputStream.flush();
+		}
+		long micros = (System.nanoTime() - begin) / 1000;
+		metrics.request(status, micros, cacheResult, sentLength);
+		if (accessLog != null) {
+			accessLog.log(start, remoteAddress, remotePort, request.getMethod().name(), request.getUri(), status,
+					sentLength, micros);
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * @return true if the client has sent more bytes than have been handled
+	 */
+	boolean hasBufferedInput() {
+		try {
+			return request.available() > 0;
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * close the connection with client
+	 * 
+	 * @throws IOException
+	 */
+	private void close() throws IOException {
+		outputStream.close();
+		request.close();
+		connection.close();
+	}
+
 	/**
 	 * handle the GET request
 	 * 
 	 * @throws IOException
 	 */
 	private void doGetResponse() throws IOException {
-		String[] tokens = requestLine.split("\\s+");
 		String filePath = null;
 		File file = null;
 		keepAlive = false;
 
-		if (tokens.length != 3) {
+		if (!request.isWellFormed()) {
 			this.logger.log(Level.WARNING, this.logHeader + "Incorrect Request! Missing necessary parts");
 			filePath = rootpath + "\\response\\400.html";
 			file = new File(filePath);
-			sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+			sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
 					file.length(), keepAlive);
 			sendContent(filePath);
 		} else {
 
-			String url = tokens[1];
-			String version = tokens[2];
+			String url = request.getUri();
+			keepAlive = request.headerContains("Connection", "keep-alive");
 
-			tokens = request.toString().split("\\s+");
-			for (int i = 0; i < tokens.length; i++) {
-				if (tokens[i].equals("Connection:")) {
-					// Get the "Connection"
-					keepAlive = tokens[i + 1].equals("keep-alive");
-					break;
-				}
-			}
-
-			if (version.equals("HTTP/1.0") || version.equals("HTTP/1.1")) {
+			if (request.isRequestVersion("HTTP/1.0") || request.isRequestVersion("HTTP/1.1")) {
 				if (url.endsWith("/")) {
 					url = url + "index.html";
 				}
 				filePath = rootpath + url.replaceAll("/", "\\\\");
-				file = new File(filePath);
-				if (file.exists()) {
-					sendHeader("HTTP/1.1 200 OK", URLConnection.getFileNameMap().getContentTypeFor(filePath),
-							file.length(), keepAlive);
-					sendContent(filePath);
+				if (url.equals(ProxyMetrics.PATH)) {
+					sendMetrics();
+				} else if (sendCached(url, filePath, true)) {
+					cacheResult = ProxyMetrics.CacheResult.HIT;
+				} else if (fetchRanges(url, filePath)) {
+					cacheResult = ProxyMetrics.CacheResult.RANGE;
 				} else {
-					requestServer(filePath);
+					fetch(url, filePath);
 				}
 			} else {
 				this.logger.log(Level.WARNING, this.logHeader + "HTTP version not accepted");
 				filePath = rootpath + "\\response\\400.html";
 				file = new File(filePath);
-				sendHeader("HTTP/1.1 400 Bad Request", URLConnection.getFileNameMap().getContentTypeFor(filePath),
+				sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
 						file.length(), keepAlive);
 				sendContent(filePath);
 			}
 		}
 		if (!keepAlive) {
 			// If Connection is not keep-alive, close the connection with client.
-			inputStream.close();
-			outputStream.close();
-			socket.close();
-		} else {
-			request.setLength(0);
-			// clear the request
+			close();
 		}
 	}
 
 	/**
-	 * handle the PUT request
+	 * send the object from the memory cache or the cache file, if it is cached
+	 * and fresh
+	 * 
+	 * @param url      The URL of request
+	 * @param filePath The path of cache file
+	 * @param first    Whether this is the first lookup for the request, which
+	 *                 counts as a request of the object and obeys the
+	 *                 "Cache-Control" of client
+	 * @return false if the object is not cached or is stale
+	 * @throws IOException
 	 */
-	private void doPutResponse() {
+	private boolean sendCached(String url, String filePath, boolean first) throws IOException {
+		CacheEntry cacheEntry = lookupEntry(url);
+		if (cacheEntry == null || !cacheEntry.isFresh(System.currentTimeMillis(), first ? request : null)) {
+			return false;
+		}
+		return sendEntry(url, filePath, cacheEntry, first);
+	}
+
+	/**
+	 * send a cached object, or "304 Not Modified" if the client holds it already
+	 * 
+	 * @param url        The URL of request
+	 * @param filePath   The path of cache file
+	 * @param cacheEntry The entry of object
+	 * @param count      Whether the lookup counts as a request of the object
+	 * @return false if the object is not cached any more
+	 * @throws IOException
+	 */
+	private boolean sendEntry(String url, String filePath, CacheEntry cacheEntry, boolean count)
+			throws IOException {
+		MemoryCache memoryCache = context.getMemoryCache();
+		MemoryCache.Entry entry = null;
+		if (memoryCache != null) {
+			entry = count ? memoryCache.get(url) : memoryCache.peek(url);
+		}
+		File file = new File(filePath);
+		FileChannel fileChannel = null;
+		if (entry == null) {
+			// Opened before the header is sent, the evictor may delete the file any time
+			fileChannel = openCached(file);
+			if (fileChannel == null) {
+				context.getCacheIndex().remove(url); // The file has been removed
+				return false;
+			}
+		}
+		FileChannel variantChannel = null;
+		try {
+			if (count) {
+				context.getCacheIndex().touch(url);
+			}
+			String contentType = cacheEntry.getContentType();
+			if (contentType == null) {
+				contentType = entry != null ? entry.getContentType()
+						: HeaderWriter.contentType(filePath);
+			}
+			long length = entry != null ? entry.getLength() : fileChannel.size();
+			long now = System.currentTimeMillis();
+			String[] fields = cacheEntry.responseFields(now, null);
+			List<long[]> ranges = ByteRanges.parse(request, length, cacheEntry.getEtag(),
+					cacheEntry.getLastModified());
+			String coding = null;
+			if (Compression.isCompressible(contentType)) {
+				// Ranges are sent of the identity
+				coding = ranges == null ? Compression.negotiate(request) : null;
+				if (coding != null) {
+					variantChannel = openVariant(url, file, cacheEntry, coding);
+				}
+				if (variantChannel != null) {
+					fields = cacheEntry.responseFields(now, coding);
+				} else {
+					coding = null;
+					fields = with(fields, Compression.VARY);
+				}
+			}
+			if (cacheEntry.isNotModified(request, coding)) {
+				sendHeader("HTTP/1.1 304 Not Modified", contentType,
+						variantChannel != null ? variantChannel.size() : length, keepAlive, fields);
+			} else if (variantChannel != null) {
+				// The compressed variant kept next to the cache file
+				long variantLength = variantChannel.size();
+				sendHeader("HTTP/1.1 200 OK", contentType, variantLength, keepAlive, fields);
+				sendBody(variantChannel, variantLength);
+			} else if (ranges != null && entry != null) {
+				sendRanges(null, entry.getData(), contentType, length, ranges, fields);
+			} else if (ranges != null) {
+				sendRanges(fileChannel, null, contentType, length, ranges, fields);
+			} else if (entry != null) {
+				// A hot object, the file is not touched
+				sendHeader("HTTP/1.1 200 OK", contentType, length, keepAlive, fields);
+				sendBuffer(entry.getData());
+			} else {
+				sendHeader("HTTP/1.1 200 OK", contentType, length, keepAlive, fields);
+				sendBody(fileChannel, length);
+				if (memoryCache != null) {
+					memoryCache.load(url, file, contentType);
+				}
+			}
+			return true;
+		} finally {
+			closeQuietly(fileChannel);
+			closeQuietly(variantChannel);
+		}
+	}
+
+	/**
+	 * open the compressed variant of a cached object. The index tells whether it
+	 * has been made, so no file is looked at until it is sent; if it has not, it
+	 * is made in the background for the next request.
+	 * 
+	 * @param url        The URL of request
+	 * @param file       The cache file
+	 * @param cacheEntry The entry of object
+	 * @param coding     "gzip" or "deflate"
+	 * @return The channel of variant, or null if the identity is sent
+	 * @throws IOException
+	 */
+	private FileChannel openVariant(String url, File file, CacheEntry cacheEntry, String coding)
+			throws IOException {
+		CacheIndex cacheIndex = context.getCacheIndex();
+		File variant = new File(file.getPath() + Compression.suffix(coding));
+		long variantLength = cacheIndex.getVariant(url, coding);
+		if (variantLength < 0) {
+			Compression.build(file, variant, coding, cacheEntry.getLength(), made -> {
+				if (!cacheIndex.addVariant(cacheEntry, coding, made)) {
+					variant.delete(); // Made of a version replaced meanwhile
+				}
+			});
+			return null;
+		}
+		// A variant which is not smaller is kept, so it is not made again, but not sent
+		return variantLength < cacheEntry.getLength() ? openCached(variant) : null;
+	}
+
+	/**
+	 * open a cache file for reading
+	 * 
+	 * @param file
+	 * @return The channel, or null if the file does not exist
+	 * @throws IOException
+	 */
+	private static FileChannel openCached(File file) throws IOException {
+		try {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// Only read
+			}
+		}
+	}
+
+	/**
+	 * send a content whose header has been sent. If it fails the connection is
+	 * closed, as the client can not tell where the next response starts.
+	 * 
+	 * @param fileChannel The file opened before the header was sent
+	 * @param length      The length given in the header
+	 * @throws IOException
+	 */
+	private void sendBody(FileChannel fileChannel, long length) throws IOException {
 		try {
-			String[] tokens = request.toString().split("\\s+");
-			int fileLength = 0;
-			String contentType = null;
+			ContentSender.sendRange(fileChannel, 0, length, outputStream, channel);
+		} catch (IOException ex) {
 			keepAlive = false;
-			for (int i = 0; i < tokens.length; i++) {
-				// resolve the request
-				if (tokens[i].equals("Content-Length:")) {
-					fileLength = Integer.parseInt(tokens[i + 1]);
-				} else if (tokens[i].equals("Content-Type:")) {
-					contentType = tokens[i + 1];
-				} else if (tokens[i].equals("Connection:")) {
-					keepAlive = tokens[i + 1].equals("keep-alive");
+			throw ex;
+		}
+	}
+
+	/**
+	 * find the entry of a cached object in the index, without touching the disk
+	 * 
+	 * @param url The URL of request
+	 * @return entry, or null if the object is not cached
+	 */
+	private CacheEntry lookupEntry(String url) {
+		return context.getCacheIndex().get(url);
+	}
+
+	/**
+	 * keep the entry of a cached object in the index
+	 * 
+	 * @param entry
+	 * @throws IOException
+	 */
+	private void storeEntry(CacheEntry entry) throws IOException {
+		context.getCacheIndex().put(entry);
+	}
+
+	/**
+	 * remove an object the server does not have any more
+	 * 
+	 * @param url      The URL of request
+	 * @param filePath The path of cache file
+	 */
+	private void removeEntry(String url, String filePath) throws IOException {
+		context.getCacheIndex().remove(url);
+		MemoryCache memoryCache = context.getMemoryCache();
+		if (memoryCache != null) {
+			memoryCache.invalidate(url);
+		}
+		new File(filePath).delete();
+		Compression.deleteVariants(new File(filePath));
+	}
+
+	/**
+	 * fetch a missing object from server, or revalidate a stale one. Only one
+	 * handler fetches an object at a time, the others missing it meanwhile wait
+	 * and answer from the cache.
+	 * 
+	 * @param url      The URL of request
+	 * @param filePath The path of cache file
+	 * @throws IOException
+	 */
+	private void fetch(String url, String filePath) throws IOException {
+		SingleFlight singleFlight = context.getSingleFlight();
+		SingleFlight.Flight flight = singleFlight.join(url);
+		if (!flight.isLeader()) {
+			try {
+				if (flight.await(coalesceWait) && sendCached(url, filePath, false)) {
+					cacheResult = ProxyMetrics.CacheResult.COALESCED;
+					return;
 				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			// The object could not be cached, e.g. it is an error page, fetch it for this client
+			flight = singleFlight.join(url);
+			if (!flight.isLeader()) {
+				requestServer(filePath, url, request.getStartLine(), true, null, flight);
+				return;
 			}
+		}
+		// The followers are released once the object has been published
+		requestServer(filePath, url, request.getStartLine(), true, context.getCacheIndex().get(url), flight);
+	}
 
-			sendHeader("HTTP/1.1 200 OK", contentType, fileLength, keepAlive);
+	/**
+	 * answer a range request for an object which is not cached from its sparse
+	 * file, fetching only the ranges missing in it from server. A sparse file
+	 * which becomes complete is published as the cache file. The ranges of an
+	 * object too large to keep in parts are relayed from server.
+	 * 
+	 * @param url      The URL of request
+	 * @param filePath The path of cache file
+	 * @return false if the request has no ranges or they can not be fetched
+	 *         alone, then the whole object is fetched
+	 * @throws IOException
+	 */
+	private boolean fetchRanges(String url, String filePath) throws IOException {
+		SparseCache sparseCache = context.getSparseCache();
+		String range = request.getHeader("Range");
+		if (sparseCache == null || range == null || !range.trim().regionMatches(true, 0, "bytes=", 0, 6)
+				|| context.getCacheIndex().get(url) != null) {
+			return false; // A stale object is revalidated as a whole
+		}
+		String sparsePath = filePath + ".sparse";
+		sparseTooLarge = false;
+		SparseCache.SparseFile sparse = sparseCache.get(url);
+		if (sparse != null && !sparse.getEntry().isFresh(System.currentTimeMillis(), request)) {
+			sparseCache.remove(url);
+			sparse = null;
+		}
+		if (sparse == null) {
+			// The first range tells the length and the validators of object
+			int equals = range.indexOf('=');
+			sparse = fetchPart(url, sparsePath, null, range.substring(equals + 1).split(",")[0].trim());
+			if (sparse == null) {
+				return relayRanges();
+			}
+		}
+		for (int attempt = 0; attempt < 2; attempt++) {
+			CacheEntry entry = sparse.getEntry();
+			List<long[]> ranges = ByteRanges.parse(request, entry.getLength(), entry.getEtag(),
+					entry.getLastModified());
+			if (ranges == null) {
+				return false;
+			}
+			SparseCache.SparseFile current = sparse;
+			for (long[] wanted : ranges) {
+				for (long[] gap : current.gaps(wanted[0], wanted[1])) {
+					if (sparse != current) {
+						break;
+					}
+					sparse = fetchPart(url, sparsePath, current, gap[0] + "-" + gap[1]);
+					if (sparse == null) {
+						return relayRanges();
+					}
+				}
+			}
+			if (sparse != current) {
+				continue; // The object has changed, its ranges are fetched again
+			}
+			if (sparse.isComplete()) {
+				if (sparseCache.publish(url, sparse, new File(filePath))) {
+					publish(entry, new File(filePath), null);
+				}
+				return sendCached(url, filePath, false);
+			}
+			if (!sparse.acquire()) {
+				return false; // Dropped meanwhile
+			}
+			try {
+				sendRanges(sparse.getChannel(), null, entry.getContentType() != null ? entry.getContentType()
+						: HeaderWriter.contentType(filePath), entry.getLength(), ranges,
+						entry.responseFields(System.currentTimeMillis(), null));
+			} finally {
+				sparse.release();
+			}
+			return true;
+		}
+		return false;
+	}
 
-			String path = savepath + tokens[1].replaceAll("/", "\\\\");
-			File file = new File(path);
-			FileOutputStream fos = new FileOutputStream(file);
+	/**
+	 * relay the ranges of an object too large to keep in parts from server,
+	 * without caching them
+	 * 
+	 * @return false if the object is not too large, then it is fetched as a
+	 *         whole
+	 * @throws IOException
+	 */
+	private boolean relayRanges() throws IOException {
+		if (!sparseTooLarge) {
+			return false;
+		}
+		List<String> fields = new ArrayList<String>(2);
+		fields.add("Range: " + request.getHeader("Range"));
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null) {
+			fields.add("If-Range: " + ifRange);
+		}
+		String[] conditions = fields.toArray(new String[0]);
+		String startLine = "GET " + request.getUri() + " HTTP/1.1";
+		UpstreamPool upstreamPool = context.getUpstreamPool();
+		HttpClient httpClient = null;
+		boolean reusable = false;
+		try {
+			httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+			try {
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			} catch (IOException ex) {
+				if (!httpClient.isReused()) {
+					throw ex;
+				}
+				// The idle connection has been closed by server, retry on a new one
+				upstreamPool.checkin(httpClient, false);
+				httpClient = null;
+				httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			}
+			if (verbose) {
+				logger.info("Header: \r\n" + httpClient.getHeader());
+			}
+			if (httpClient.getContentLength() < 0) {
+				keepAlive = false; // The content ends with the connection
+			}
+			relayHeader(httpClient, false);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = httpClient.readContent(buffer)) != -1) {
+				outputStream.write(buffer, 0, len);
+				metrics.received(len);
+			}
+			reusable = true;
+			if (!httpClient.isContentComplete()) {
+				keepAlive = false;
+			}
+			return true;
+		} finally {
+			if (httpClient != null) {
+				upstreamPool.checkin(httpClient, reusable);
+			}
+		}
+	}
 
-			byte[] buffer = new byte[fileLength];
-			int revBytes = 0;
-			int bytes;
-			while ((bytes = inputStream.read(buffer, revBytes, fileLength - revBytes)) > 0) {
-				revBytes += bytes;
+	/**
+	 * fetch a range of object from server into its sparse file
+	 * 
+	 * @param url        The URL of request
+	 * @param sparsePath The path of sparse file
+	 * @param sparse     The sparse file of object, or null if there is none yet
+	 * @param range      The range, e.g. "0-499"
+	 * @return The sparse file holding the range, a new one if the object has
+	 *         changed, or null if the range can not be cached, e.g. the object
+	 *         is too large to keep in parts
+	 * @throws IOException
+	 */
+	private SparseCache.SparseFile fetchPart(String url, String sparsePath, SparseCache.SparseFile sparse,
+			String range) throws IOException {
+		List<String> fields = new ArrayList<String>(2);
+		fields.add("Range: bytes=" + range);
+		if (sparse != null) {
+			// The whole object is sent if it has changed
+			CacheEntry entry = sparse.getEntry();
+			if (entry.getEtag() != null && !entry.getEtag().startsWith("W/")) {
+				fields.add("If-Range: " + entry.getEtag());
+			} else if (entry.getLastModified() >= 0) {
+				fields.add("If-Range: " + Validators.formatDate(entry.getLastModified()));
+			}
+		}
+		String[] conditions = fields.toArray(new String[0]);
+		String startLine = "GET " + request.getUri() + " HTTP/1.1";
+		UpstreamPool upstreamPool = context.getUpstreamPool();
+		HttpClient httpClient = null;
+		boolean reusable = false;
+		SparseCache.SparseFile target = null;
+		try {
+			httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+			long sent = System.nanoTime();
+			try {
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			} catch (IOException ex) {
+				if (!httpClient.isReused()) {
+					throw ex;
+				}
+				// The idle connection has been closed by server, retry on a new one
+				upstreamPool.checkin(httpClient, false);
+				httpClient = null;
+				httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			}
+			metrics.getFirstByteLatency().recordSince(sent);
+			if (verbose) {
+				logger.info("Header: \r\n" + httpClient.getHeader());
+			}
+			long now = System.currentTimeMillis();
+			long position;
+			long length;
+			if (httpClient.getStatus() == 206) {
+				long[] part = ByteRanges.parseContentRange(httpClient.getHeaderField("Content-Range"));
+				if (part == null) {
+					return null; // Several parts, or of an unknown length
+				}
+				position = part[0];
+				length = part[2];
+			} else if (httpClient.getStatus() == 200 && httpClient.getContentLength() >= 0) {
+				position = 0;
+				length = httpClient.getContentLength();
+			} else {
+				return null; // Left to the whole fetch, e.g. an error page
+			}
+			if (!CacheEntry.isStorable(httpClient)) {
+				return null;
+			}
+			CacheEntry entry = CacheEntry.fromResponse(url, httpClient, now, defaultTtl, length);
+			if (sparse != null && isSameVersion(sparse.getEntry(), entry) && sparse.acquire()) {
+				target = sparse;
+			} else {
+				SparseCache.SparseFile opened = context.getSparseCache().open(url, new File(sparsePath), entry);
+				if (opened == null) {
+					// The content is not read, the connection is closed
+					sparseTooLarge = true;
+					return null;
+				}
+				if (!opened.acquire()) {
+					return null; // Dropped at once by other objects
+				}
+				target = opened;
+			}
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			long transfer = System.nanoTime();
+			while ((len = httpClient.readContent(buffer)) != -1) {
+				target.write(position, buffer, 0, len);
+				position += len;
+				metrics.received(len);
+			}
+			metrics.getTransferLatency().recordSince(transfer);
+			reusable = true;
+			return target;
+		} finally {
+			if (target != null) {
+				target.release();
+			}
+			if (httpClient != null) {
+				upstreamPool.checkin(httpClient, reusable);
+			}
+		}
+	}
+
+	/**
+	 * @return true if both entries describe the same version of object
+	 */
+	private static boolean isSameVersion(CacheEntry a, CacheEntry b) {
+		return a.getLength() == b.getLength() && a.getLastModified() == b.getLastModified()
+				&& (a.getEtag() == null ? b.getEtag() == null : a.getEtag().equals(b.getEtag()));
+	}
 
+	/**
+	 * start fetching the objects of the GET requests pipelined after the current
+	 * one, so their fetches overlap. The responses are still sent in order, each
+	 * request then finds its object cached or joins the fetch in flight. The
+	 * requests the proxy answers itself, for the metrics, for ranges or from a
+	 * fresh cache entry, are not fetched.
+	 */
+	private void prefetch() {
+		ExecutorService prefetcher = context.getPrefetcher();
+		if (prefetcher == null || pipelineDepth <= 0) {
+			return;
+		}
+		pipelined.clear();
+		request.peekRequests(pipelined, pipelineDepth);
+		if (pipelined.isEmpty()) {
+			prefetched.clear();
+			return;
+		}
+		SingleFlight singleFlight = context.getSingleFlight();
+		for (String uri : pipelined) {
+			if (!prefetched.add(uri)) {
+				continue;
+			}
+			String url = uri.endsWith("/") ? uri + "index.html" : uri;
+			if (url.equals(ProxyMetrics.PATH)) {
+				continue;
+			}
+			String filePath = rootpath + url.replaceAll("/", "\\\\");
+			CacheEntry stale = lookupEntry(url);
+			if (stale != null && stale.isFresh(System.currentTimeMillis(), null)) {
+				continue;
+			}
+			String startLine = "GET " + uri + " HTTP/1.1";
+			prefetcher.execute(() -> {
+				SingleFlight.Flight flight = singleFlight.join(url);
+				if (!flight.isLeader()) {
+					return; // Already in flight
+				}
+				try {
+					requestServer(filePath, url, startLine, false, stale, flight);
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, logHeader + "Prefetch Error", ex);
+				}
+			});
+		}
+	}
+
+	/**
+	 * handle the PUT request. The upload is forwarded to server, and the cached
+	 * copy of the object is invalidated once the server has accepted it.
+	 */
+	private void doPutResponse() {
+		try {
+			keepAlive = request.headerContains("Connection", "keep-alive");
+			if (!UploadReceiver.hasValidLength(request)) {
+				this.logger.log(Level.WARNING, this.logHeader + "Malformed Content-Length");
+				String filePath = rootpath + "\\response\\400.html";
+				sendHeader("HTTP/1.1 400 Bad Request", HeaderWriter.contentType(filePath),
+						new File(filePath).length(), false);
+				sendContent(filePath);
+				keepAlive = false;
+				close();
+				return;
+			}
+			String uri = request.getUri();
+			String url = uri.endsWith("/") ? uri + "index.html" : uri;
+			if (request.headerContains("Expect", "100-continue")) {
+				// The client waits for this before it sends the content
+				outputStream.write(CONTINUE);
+				outputStream.flush();
+			}
+			if (!writeBack(url)) {
+				writeThrough(url);
 			}
-			fos.write(buffer);
-			fos.flush();
-			fos.close();
 			if (!keepAlive) {
-				inputStream.close();
-				outputStream.close();
-				socket.close();
-			} else {
-				request.setLength(0);
+				close();
 			}
 		} catch (IOException ex) {
-			this.logger.log(Level.SEVERE, this.logHeader + "Can not receive file", ex);
+			this.logger.log(Level.SEVERE, this.logHeader + "Can not forward file", ex);
+			keepAlive = false; // The rest of content can not be skipped
+			try {
+				close();
+			} catch (IOException closeEx) {
+				this.logger.log(Level.WARNING, this.logHeader + "Close Error", closeEx);
+			}
 		}
 	}
 
 	/**
-	 * resolve request
+	 * keep a small upload in memory and answer at once, the put batcher forwards
+	 * it with the others
 	 * 
+	 * @param url The URL of object
+	 * @return false if the upload can not be batched
 	 * @throws IOException
 	 */
-	private void receiveRequest() throws IOException {
-		boolean finishFirst = false;
-		boolean finishAll = false;
-		boolean finishLast = false;
-		int c = 0;
-		while (!finishAll && (c = inputStream.read()) != -1) {
-			switch (c) {
-			case '\r':
-				break;
-			case '\n':
-				if (!finishFirst) {
-					requestLine = new String(request.toString().getBytes(), ENCODING);
-					// Get the first line of request
-					finishFirst = true;
+	private boolean writeBack(String url) throws IOException {
+		PutBatcher putBatcher = context.getPutBatcher();
+		if (putBatcher == null || UploadReceiver.isChunked(request)) {
+			return false;
+		}
+		long length = UploadReceiver.getLength(request);
+		if (!putBatcher.accepts(length)) {
+			return false;
+		}
+		byte[] content = new byte[(int) length];
+		int received = 0;
+		int bytes;
+		while (received < content.length
+				&& (bytes = request.read(content, received, content.length - received)) > 0) {
+			received += bytes;
+		}
+		if (received < content.length) {
+			this.logger.log(Level.WARNING, this.logHeader + "Upload incomplete, the client has closed");
+			keepAlive = false;
+			return true;
+		}
+		context.invalidate(url); // Not served from the cache until the server has it
+		putBatcher.submit(url, "PUT " + request.getUri() + " HTTP/1.1", uploadFields(), content);
+		sendHeader("HTTP/1.1 202 Accepted", "text/plain", 0, keepAlive);
+		return true;
+	}
+
+	/**
+	 * stream the upload to server through a pooled connection, and relay the
+	 * response of server
+	 * 
+	 * @param url The URL of object
+	 * @throws IOException
+	 */
+	private void writeThrough(String url) throws IOException {
+		UpstreamPool upstreamPool = context.getUpstreamPool();
+		long length = UploadReceiver.isChunked(request) ? -1 : UploadReceiver.getLength(request);
+		String startLine = "PUT " + request.getUri() + " HTTP/1.1";
+		HttpClient httpClient = null;
+		boolean reusable = false;
+		boolean accepted = false; // Whether the server has the new content
+		try {
+			OutputStream upload;
+			try {
+				httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+				upload = httpClient.sendPutRequest(startLine, length, true, uploadFields());
+				httpClient.flush();
+			} catch (IOException ex) {
+				if (httpClient == null || !httpClient.isReused()) {
+					badGateway(ex);
+					return;
 				}
-				if (!finishLast) {
-					request.append("\r\n");
-					finishLast = true;
-				} else if (finishLast) {
-					finishAll = true;
+				// The idle connection has been closed by server, retry on a new one
+				upstreamPool.checkin(httpClient, false);
+				httpClient = null;
+				try {
+					httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+					upload = httpClient.sendPutRequest(startLine, length, true, uploadFields());
+				} catch (IOException retryEx) {
+					badGateway(retryEx);
+					return;
 				}
-				break;
-			default:
-				request.append((char) c);
-				finishLast = false;
-				break;
+			}
+			if (UploadReceiver.transfer(request, upload) < 0) {
+				this.logger.log(Level.WARNING, this.logHeader + "Upload incomplete, the client has closed");
+				keepAlive = false;
+				return;
+			}
+			upload.close();
+			httpClient.receiveHeader();
+			if (verbose) {
+				logger.info("Header: \r\n" + httpClient.getHeader());
+			}
+			accepted = httpClient.getStatus() / 100 == 2;
+			if (httpClient.getContentLength() < 0) {
+				keepAlive = false; // The content ends with the connection
+			}
+			relayHeader(httpClient, false);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = httpClient.readContent(buffer)) != -1) {
+				outputStream.write(buffer, 0, len);
+			}
+			reusable = true;
+			if (!httpClient.isContentComplete()) {
+				keepAlive = false;
+			}
+		} finally {
+			if (httpClient != null) {
+				upstreamPool.checkin(httpClient, reusable);
+			}
+			if (accepted) {
+				// The short response of an upload is still buffered, the client learns of the change afterwards
+				context.invalidate(url);
 			}
 		}
 	}
-	
+
 	/**
-	 * write the content of file, and return the URI of file.
+	 * @return The attributes of request forwarded with an upload
+	 */
+	private String[] uploadFields() {
+		String contentType = request.getHeader("Content-Type");
+		return contentType == null ? new String[0] : new String[] { "Content-Type: " + contentType };
+	}
+
+	/**
+	 * answer an upload the server can not be reached for. The content has not
+	 * been read, so the connection is closed.
 	 * 
-	 * @param fileContent
-	 * @param path
-	 * @return URI
+	 * @param ex The error of connection
+	 */
+	private void badGateway(IOException ex) {
+		this.logger.log(Level.WARNING, this.logHeader + "Can not connect to server", ex);
+		keepAlive = false;
+		sendHeader("HTTP/1.1 502 Bad Gateway", "text/plain", 0, keepAlive);
+	}
+
+	/**
+	 * fetch the file from server through a pooled connection, and send it to
+	 * client while it is received. A successful response is handed to the cache
+	 * writer at the same time, which publishes it once it is complete, so the
+	 * client does not wait for the disk. A stale object is requested on
+	 * condition it has changed, if it has not the cached copy is sent.
+	 * 
+	 * @param fileName  The path of cache file
+	 * @param url       The URL of request
+	 * @param startLine The request line sent to server
+	 * @param relay     Whether the response is sent to client, or only cached
+	 * @param stale     The entry of a stale cached object, or null if the object
+	 *                  is not cached
+	 * @param flight    The flight of fetch, which is landed once the object has
+	 *                  been published if it is the leader, or null if there is
+	 *                  none
 	 * @throws IOException
 	 */
-	private URI writeFile(String fileContent, String path) throws IOException {
-		File file;
-		int index = path.lastIndexOf("/");
-		if (index != -1) {
-			String fileName = path.substring(index + 1); // Get the name of file
-			String dir = path.substring(0, index); // Get the directory
-			file = new File(rootpath, dir);		
-			if (!file.exists()) {
-				file.mkdirs(); // If the directory does not exist, it will be created.
-			}
-			File newFile = new File(file.getAbsolutePath(), fileName);
-			FileOutputStream outfile = new FileOutputStream(newFile);
-			outfile.write(fileContent.getBytes(ENCODING));
-			outfile.flush();
-			outfile.close();
+	private void requestServer(String fileName, String url, String startLine, boolean relay, CacheEntry stale,
+			SingleFlight.Flight flight) throws IOException {
+		Consumer<Boolean> landing = flight != null && flight.isLeader()
+				? cached -> context.getSingleFlight().land(flight, cached)
+				: NO_LANDING;
+		UpstreamPool upstreamPool = context.getUpstreamPool();
+		HttpClient httpClient = null;
+		String[] conditions = stale != null ? stale.conditions() : new String[0];
+		CacheEntry revalidated = null;
+		boolean reusable = false;
+		boolean cached = false;
+		boolean committed = false; // Whether the cache writer calls landing
+		try {
+			httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+			long sent = System.nanoTime();
+			try {
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			} catch (IOException ex) {
+				if (!httpClient.isReused()) {
+					throw ex;
+				}
+				// The idle connection has been closed by server, retry on a new one
+				upstreamPool.checkin(httpClient, false);
+				httpClient = null;
+				httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+				httpClient.sendGetRequest(startLine, true, conditions);
+				httpClient.receiveHeader();
+			}
+			metrics.getFirstByteLatency().recordSince(sent);
+			if (verbose) {
+				logger.info("Header: \r\n" + httpClient.getHeader());
+			}
+			if (stale != null && httpClient.getStatus() == 304) {
+				// The cached object is still valid, only the header has been transferred
+				CacheEntry entry = stale.revalidated(httpClient, System.currentTimeMillis(), defaultTtl);
+				reusable = true;
+				cached = publishFetched(flight, () -> {
+					try {
+						storeEntry(entry);
+						return true;
+					} catch (IOException ex) {
+						logger.log(Level.WARNING, logHeader + "Can not index " + url, ex);
+						return false;
+					}
+				});
+				revalidated = entry; // Sent once the connection is released, fetched again if it is gone
+				if (relay) {
+					cacheResult = ProxyMetrics.CacheResult.REVALIDATED;
+				}
+				return;
+			}
+			OutputStream client = outputStream;
+			ChunkedOutputStream chunkedClient = null;
+			if (relay) {
+				cacheResult = ProxyMetrics.CacheResult.MISS;
+				if (httpClient.getContentLength() < 0) {
+					if (request.isRequestVersion("HTTP/1.1")) {
+						// Encode the content of unknown length again, so the connection is kept
+						chunkedClient = new ChunkedOutputStream(outputStream);
+						client = chunkedClient;
+					} else {
+						keepAlive = false; // The content ends with the connection
+					}
+				}
+				relayHeader(httpClient, chunkedClient != null);
+				outputStream.flush();
+			}
+
+			CacheWriter.Fill fill = null;
+			ByteBuffer hot = null; // A copy for the memory cache
+			MemoryCache memoryCache = context.getMemoryCache();
+			boolean storable = CacheEntry.isStorable(httpClient);
+			if (storable) {
+				// Only the file itself is cached, not the error pages nor what the server forbids
+				fill = context.getCacheWriter().begin(new File(fileName));
+				if (fill != null && memoryCache != null && memoryCache.wouldAdmit(url, httpClient.getContentLength())) {
+					// Allocated only for an object which is likely admitted
+					hot = ByteBuffer.allocateDirect((int) httpClient.getContentLength());
+				}
+			}
+			long received = 0;
+			long transfer = System.nanoTime();
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = httpClient.readContent(buffer)) != -1) {
+					received += len;
+					if (relay) {
+						client.write(buffer, 0, len);
+						outputStream.flush();
+					}
+					if (fill != null && !fill.write(buffer, 0, len)) {
+						// The writer is behind or the disk is full, the object is not cached
+						fill = null;
+						hot = null;
+					}
+					if (hot != null) {
+						hot.put(buffer, 0, len);
+					}
+				}
+				reusable = true;
+				metrics.getTransferLatency().recordSince(transfer);
+				if (relay) {
+					if (!httpClient.isContentComplete()) {
+						keepAlive = false; // The client finds the content incomplete when it is closed
+					} else if (chunkedClient != null) {
+						chunkedClient.finish();
+						outputStream.flush();
+					}
+				}
+			} finally {
+				metrics.received(received);
+				if (fill != null) {
+					if (reusable && httpClient.isContentComplete()) {
+						CacheEntry entry = CacheEntry.fromResponse(url, httpClient, System.currentTimeMillis(),
+								defaultTtl, received);
+						ByteBuffer copy = hot;
+						File file = new File(fileName);
+						fill.commit(written -> {
+							boolean published = written && publishFetched(flight, () -> publish(entry, file, copy));
+							if (written && !published && flight != null && flight.isInvalidated()) {
+								file.delete(); // The old content, renamed after the object was invalidated
+							}
+							landing.accept(published);
+						});
+						committed = true;
+					} else {
+						fill.abort(); // The content is incomplete
+					}
+				}
+			}
+			int status = httpClient.getStatus();
+			if (stale != null && !storable && (status == 200 || status == 404 || status == 410)) {
+				// The object must not be cached any more, or is gone
+				removeEntry(url, fileName);
+			}
+		} finally {
+			if (httpClient != null) {
+				upstreamPool.checkin(httpClient, reusable);
+			}
+			if (!committed) {
+				landing.accept(cached);
+			}
+			if (revalidated != null && relay && !sendEntry(url, fileName, revalidated, false)) {
+				// The cache file has been removed meanwhile
+				requestServer(fileName, url, startLine, relay, null, null);
+			}
+		}
+	}
+
+	/**
+	 * make what a fetch has got visible in the cache, unless the object has been
+	 * invalidated since the fetch started
+	 * 
+	 * @param flight  The flight of fetch, or null if there is none
+	 * @param publish Makes the object visible in the cache
+	 * @return true if the object has been cached
+	 */
+	private static boolean publishFetched(SingleFlight.Flight flight, BooleanSupplier publish) {
+		return flight != null ? flight.publish(publish) : publish.getAsBoolean();
+	}
+
+	/**
+	 * make an object visible in the cache once the cache writer has renamed its
+	 * file, called on the writer thread
+	 * 
+	 * @param entry The entry of object
+	 * @param file  The cache file
+	 * @param hot   The content for the memory cache, or null
+	 * @return true if the object has been cached
+	 */
+	private boolean publish(CacheEntry entry, File file, ByteBuffer hot) {
+		MemoryCache memoryCache = context.getMemoryCache();
+		if (memoryCache != null) {
+			memoryCache.invalidate(entry.getUrl()); // The object may have changed
+		}
+		try {
+			storeEntry(entry);
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, logHeader + "Can not index " + entry.getUrl(), ex);
+			return false;
+		}
+		// The variants were made of the file replaced, a variant still being made is dropped by the index
+		context.getCacheIndex().clearVariants(entry.getUrl());
+		Compression.deleteVariants(file);
+		if (hot != null) {
+			hot.flip();
+			memoryCache.put(entry.getUrl(), hot, entry.getContentType());
+		}
+		return true;
+	}
+
+	/**
+	 * send the header from server to client, with the "Connection" attribute of
+	 * client instead of the one of server
+	 * 
+	 * @param httpClient The connection to server, after receiveHeader()
+	 * @param chunked    Whether the content is sent to client in chunks
+	 * @throws IOException
+	 */
+	private void relayHeader(HttpClient httpClient, boolean chunked) throws IOException {
+		// The content is decoded from server and encoded again for client
+		httpClient.writeHeader(outputStream, "Connection", "Transfer-Encoding");
+		status = httpClient.getStatus();
+		sentLength = chunked ? -1 : httpClient.getContentLength();
+		if (chunked) {
+			outputStream.write(CHUNKED);
+		}
+		if (keepAlive) {
+			outputStream.write(KEEP_ALIVE);
 		} else {
-			file = new File(rootpath, path);
-			FileOutputStream outfile = new FileOutputStream(file);
-			outfile.write(fileContent.getBytes(ENCODING));
-			outfile.flush();
-			outfile.close();
+			outputStream.write(CLOSE);
 		}
-		return file.toURI();
 	}
-	
+
 	/**
+	 * send the ranges of a cached object asked for, or "416 Range Not
+	 * Satisfiable" if none of them can be satisfied. Several ranges are sent as
+	 * a multipart content.
+	 * 
+	 * @param fileChannel The file of object, or null if it is in memory
+	 * @param data        The content in memory, or null if it is in the file
+	 * @param contentType
+	 * @param length      The length of object
+	 * @param ranges      The first and last byte of each range
+	 * @param fields      Other attributes of header
 	 * @throws IOException
 	 */
-	private void requestServer(String fileName) throws IOException {
-		httpClient = new HttpClient();
-		httpClient.connect(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
-		httpClient.processGetRequest(requestLine, keepAlive);
-		byte[] buffer = httpClient.getHeader().getBytes(ENCODING);
-		logger.info("Header: \r\n" + httpClient.getHeader());
-		outputStream.write(buffer, 0, buffer.length);
-		outputStream.flush();
-		byte[] file = httpClient.getContent().getBytes(ENCODING);
-		writeFile(httpClient.getContent(), fileName);
-		outputStream.write(file, 0, file.length);
-		outputStream.flush();
-		if (!keepAlive) {
-			httpClient.close();
+	private void sendRanges(FileChannel fileChannel, ByteBuffer data, String contentType, long length,
+			List<long[]> ranges, String... fields) throws IOException {
+		if (ranges.isEmpty()) {
+			sendHeader("HTTP/1.1 416 Range Not Satisfiable", contentType, 0, keepAlive,
+					with(fields, ByteRanges.unsatisfiedRange(length)));
+			return;
+		}
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			sendHeader("HTTP/1.1 206 Partial Content", contentType, range[1] - range[0] + 1, keepAlive,
+					with(fields, ByteRanges.contentRange(range, length)));
+			sendPart(fileChannel, data, range);
+			return;
 		}
-		
+		String boundary = ByteRanges.boundary();
+		sendHeader("HTTP/1.1 206 Partial Content", ByteRanges.multipartType(boundary),
+				ByteRanges.multipartLength(boundary, contentType, ranges, length), keepAlive, fields);
+		for (long[] range : ranges) {
+			outputStream.write(ByteRanges.partHeader(boundary, contentType, range, length));
+			sendPart(fileChannel, data, range);
+		}
+		outputStream.write(ByteRanges.closing(boundary));
+	}
+
+	private void sendPart(FileChannel fileChannel, ByteBuffer data, long[] range) throws IOException {
+		if (fileChannel != null) {
+			ContentSender.sendRange(fileChannel, range[0], range[1] - range[0] + 1, outputStream, channel);
+		} else {
+			ByteBuffer part = data.duplicate();
+			part.limit((int) range[1] + 1).position((int) range[0]);
+			ContentSender.sendBuffer(part, outputStream, channel);
+		}
+	}
+
+	/**
+	 * @return The attributes with one more
+	 */
+	private static String[] with(String[] fields, String field) {
+		String[] more = Arrays.copyOf(fields, fields.length + 1);
+		more[fields.length] = field;
+		return more;
+	}
+
+	/**
+	 * send the metrics of proxy, which are never cached
+	 * 
+	 * @throws IOException
+	 */
+	private void sendMetrics() throws IOException {
+		byte[] content = metrics.render().getBytes(StandardCharsets.UTF_8);
+		sendHeader("HTTP/1.1 200 OK", ProxyMetrics.CONTENT_TYPE, content.length, keepAlive,
+				"Cache-Control: no-store");
+		outputStream.write(content);
 	}
 
 	/**
@@ -293,32 +1277,33 @@ public class HttpProxyHandler implements Runnable {
 	 * @param contentType
 	 * @param length
 	 * @param keepAlive
+	 * @param fields    Other attributes of header, e.g. "ETag: ..."
 	 */
-	private void sendHeader(String responseCode, String contentType, long length, boolean keepAlive) {
+	private void sendHeader(String responseCode, String contentType, long length, boolean keepAlive,
+			String... fields) {
+		status = Integer.parseInt(responseCode.substring(9, 12)); // "HTTP/1.1 200 OK"
+		sentLength = length;
 		try {
-			StringBuilder response = new StringBuilder();
-			response.append(responseCode + CRLF);
-			response.append("Date: " + new Date().toString() + CRLF);
-			response.append("Server: MyHttpServer/1.0" + CRLF);
-			response.append("Content-Length: " + length + CRLF);
-			response.append("Content-type: " + contentType + CRLF);
-			if (keepAlive) {
-				response.append("Connection: keep-alive" + CRLF + CRLF);
-			} else {
-				response.append("Connection: close" + CRLF + CRLF);
-			}
-
-			byte[] buffer = response.toString().getBytes(ENCODING);
-			outputStream.write(buffer, 0, buffer.length);
-			outputStream.flush();
-		} catch (UnsupportedEncodingException ex) {
-			this.logger.log(Level.SEVERE, "Unsupported Encoding", ex);
+			headerWriter.write(outputStream, responseCode, contentType, length, keepAlive, fields);
 		} catch (IOException ex) {
 			this.logger.log(Level.SEVERE, "Send Header Error", ex);
 		}
 
 	}
 
+	/**
+	 * send the content of a memory cache entry to client
+	 * 
+	 * @param buffer
+	 */
+	private void sendBuffer(ByteBuffer buffer) {
+		try {
+			ContentSender.sendBuffer(buffer, outputStream, channel);
+		} catch (IOException ex) {
+			this.logger.log(Level.SEVERE, "Can not send file", ex);
+		}
+	}
+
 	/**
 	 * send the file to client
 	 * 
@@ -326,12 +1311,10 @@ public class HttpProxyHandler implements Runnable {
 	 */
 	private void sendContent(String filePath) {
 		try {
-			File file = new File(filePath);
-			byte[] sendData = Files.readAllBytes(file.toPath());
-			outputStream.write(sendData);
-			outputStream.flush();
+			ContentSender.sendFile(new File(filePath), outputStream, channel);
 		} catch (IOException ex) {
 			this.logger.log(Level.SEVERE, "Can not send file", ex);
+			keepAlive = false; // The header has promised a content
 		}
 	}
 }
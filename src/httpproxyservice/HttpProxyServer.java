@@ -2,10 +2,12 @@ package httpproxyservice;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +23,10 @@ public class HttpProxyServer {
 	public final int PROXY_PORT; // The port of HTTP Proxy
 	private static final Logger logger = Logger.getLogger("HTTPProxyServer"); // Log file
 	private static final int POOL_SIZE = 4;
+	private static final int DEFAULT_BACKLOG = 1024; // Connections waiting to be accepted
 	private final String rootpath; // Proxy Server root path
+	private final ServerOptions options; // Optional switches
+	private final ProxyContext context; // The state shared by handlers
 
 
 	/**
@@ -32,6 +37,8 @@ public class HttpProxyServer {
 		
 		this.PROXY_PORT= Integer.parseInt(args[0]);
 		this.rootpath = args[1];
+		this.options = new ServerOptions(args, 2);
+		this.context = new ProxyContext(this.rootpath, this.options, logger);
 		logger.info("The root path of proxy server " + this.rootpath);
 		logger.info("Proxy Server Start");
 		
@@ -41,22 +48,40 @@ public class HttpProxyServer {
 	 * Begin to service
 	 */
 	public void service() {	
+		if (options.has("nio")) {
+			serviceNio();
+			return;
+		}
 		
-		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * POOL_SIZE);
-		try (ServerSocket serverSocket = new ServerSocket(PROXY_PORT, POOL_SIZE)) { // try-with-resource
+		HandlerExecutor executor = new HandlerExecutor(options, POOL_SIZE, logger);
+		registerQueueDepth(executor);
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) { // try-with-resource
+			// Sockets accepted through a channel can send files with FileChannel.transferTo()
+			ServerSocket serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(PROXY_PORT), options.getInt("backlog", DEFAULT_BACKLOG));
 
 			logger.info("Accepting connections on port " + serverSocket.getLocalPort());
 			Socket socket = null;
 			while (true) {
+				try {
+					executor.acquire(); // waiting for a free handler
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
 				try {
 					socket = serverSocket.accept();
 					// waiting for getting the client
-					logger.info("Connect to the client on " + socket.getInetAddress().getHostName());
-					HttpProxyHandler httpHandler = new HttpProxyHandler(socket, this.rootpath, logger);
-					pool.submit(httpHandler); // Start the thread
+					if (options.has("log-requests")) {
+						logger.info("Connect to the client on " + socket.getInetAddress().getHostAddress());
+					}
+					HttpProxyHandler httpHandler = new HttpProxyHandler(socket, this.context);
+					executor.execute(httpHandler); // Start the thread
 				} catch (IOException ex) {
+					executor.release();
 					logger.log(Level.SEVERE, "Accept error", ex);
 				} catch (RuntimeException ex) {
+					executor.release();
 					logger.log(Level.SEVERE, "Unexpected error" + ex.getMessage(), ex);
 				}
 			}
@@ -67,15 +92,121 @@ public class HttpProxyServer {
 		}
 	}
 
+	/**
+	 * @param executor The executor of handlers, whose queue is a metric
+	 */
+	private void registerQueueDepth(HandlerExecutor executor) {
+		context.getMetrics().register("proxy_handler_queue_depth", "gauge", "Requests waiting for a handler thread",
+				executor::getQueueDepth);
+	}
+
+	/**
+	 * Begin to service with non-blocking connections, which are driven by a few
+	 * event loops and only use a thread of pool while a request is answered.
+	 * "--max-connections" caps the connections open at once, the server stops
+	 * accepting until one is closed.
+	 */
+	private void serviceNio() {
+
+		HandlerExecutor executor = new HandlerExecutor(options, POOL_SIZE, logger);
+		registerQueueDepth(executor);
+		int maxConnections = options.getInt("max-connections", 0);
+		Semaphore permits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+		Runnable release = permits != null ? permits::release : () -> {
+		};
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			serverChannel.bind(new InetSocketAddress(PROXY_PORT), options.getInt("backlog", DEFAULT_BACKLOG));
+			NioEventLoop[] loops = new NioEventLoop[options.getInt("loops",
+					Runtime.getRuntime().availableProcessors())];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new NioEventLoop(logger);
+				Thread thread = new Thread(loops[i], "nio-loop-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+
+			logger.info("Accepting non-blocking connections on port " + PROXY_PORT + " with " + loops.length
+					+ " event loops");
+			int next = 0;
+			while (true) {
+				if (permits != null) {
+					try {
+						permits.acquire(); // waiting for a connection to be closed
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				SocketChannel channel = null;
+				NioConnection connection = null;
+				try {
+					channel = serverChannel.accept();
+					NioEventLoop loop = loops[next++ % loops.length];
+					connection = new NioConnection(channel, loop, executor.pool(), this.context, release);
+					NioConnection accepted = connection;
+					loop.execute(() -> {
+						try {
+							accepted.register();
+						} catch (IOException ex) {
+							accepted.close();
+						}
+					});
+				} catch (IOException ex) {
+					abandon(channel, connection, release);
+					logger.log(Level.SEVERE, "Accept error", ex);
+				} catch (RuntimeException ex) {
+					abandon(channel, connection, release);
+					logger.log(Level.SEVERE, "Unexpected error" + ex.getMessage(), ex);
+				}
+			}
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Can not start proxy server", ex);
+		} catch (RuntimeException ex) {
+			logger.log(Level.SEVERE, "Can not start proxy server" + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Give up a connection which could not be registered to a loop.
+	 *
+	 * @param channel    The channel accepted, or null if none was
+	 * @param connection The connection made of channel, or null if none was
+	 * @param release    Gives back the permit of connection
+	 */
+	private void abandon(SocketChannel channel, NioConnection connection, Runnable release) {
+		if (connection != null) {
+			connection.close(); // Gives back the permit itself
+			return;
+		}
+		release.run();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				logger.log(Level.FINE, "Close error", ex);
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param args
 	 * @throws IOException
 	 */
 	public static void main(String args[]) throws IOException {
-		if (args.length != 2) {
+		if (args.length < 2) {
 			logger.log(Level.SEVERE, "Missing port or root path!");
-			logger.info("Please start proxy server with <port> <root path>!");
+			logger.info("Please start proxy server with <port> <root path> [--nio] [--loops=<count>] [--virtual]"
+					+ " [--backlog=<count>]"
+					+ " [--max-connections=<count>] [--upstream-connections=<count>] [--upstream-idle=<millis>]"
+					+ " [--upstream-wait=<millis>] [--memory-cache=<bytes>] [--memory-cache-object=<bytes>]"
+					+ " [--coalesce-wait=<millis>] [--prefetch-threads=<count>] [--pipeline-depth=<count>]"
+					+ " [--default-ttl=<millis>] [--cache-write-buffer=<bytes>] [--cache-min-free=<bytes>]"
+					+ " [--disk-cache=<bytes>] [--put-write-back] [--put-batch=<count>]"
+					+ " [--put-batch-buffer=<bytes>] [--put-batch-object=<bytes>] [--sparse-files=<count>]"
+					+ " [--sparse-bytes=<bytes>]"
+					+ " [--access-log=<file>] [--access-log-buffer=<records>] [--access-log-limit=<bytes>]"
+					+ " [--access-log-count=<files>] [--log-requests]!");
 			return;
 		}
 		// Determine if the parameter is valid
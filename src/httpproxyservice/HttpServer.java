@@ -1,10 +1,10 @@
 package httpproxyservice;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +22,9 @@ public class HttpServer {
 	private static final Logger logger = Logger.getLogger("HTTPServer"); // Log file
 	private static final int POOL_SIZE = 4; // Thread pool capacity
 	private final String rootpath; // Server root path
+	private final ServerOptions options; // Optional switches
+	private final MappedFileCache mappedFiles; // null if disabled
+	private final AccessLog accessLog; // null if disabled
 
 	/**
 	 * @param args command line argument
@@ -29,15 +32,29 @@ public class HttpServer {
 	public HttpServer(String[] args) {
 
 		this.rootpath = args[0];
+		this.options = new ServerOptions(args, 1);
+		long mapCapacity = options.getLong("map-cache", 256L * 1024 * 1024);
+		this.mappedFiles = mapCapacity > 0
+				? new MappedFileCache(mapCapacity, options.getLong("map-min", 1024 * 1024))
+				: null;
+		int accessLogRecords = options.getInt("access-log-buffer", 8192);
+		this.accessLog = accessLogRecords > 0
+				? new AccessLog(new File(options.get("access-log", "./logger/HTTPServerAccess.log")), accessLogRecords,
+						options.getLong("access-log-limit", 10L * 1024 * 1024), options.getInt("access-log-count", 2),
+						logger)
+				: null;
 		logger.info("The root path of server " + this.rootpath);
 		logger.info("Server Start");
 
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length != 1) {
+		if (args.length < 1) {
 			logger.log(Level.SEVERE, "Missing root path!");
-			logger.info("Please start server with <root path>!");
+			logger.info("Please start server with <root path> [--virtual] [--max-connections=<count>]"
+					+ " [--sync-uploads] [--map-cache=<bytes>] [--map-min=<bytes>] [--access-log=<file>]"
+					+ " [--access-log-buffer=<records>] [--access-log-limit=<bytes>] [--access-log-count=<files>]"
+					+ " [--log-requests]!");
 			return;
 		}
 		// Determine if the parameter is valid
@@ -61,22 +78,36 @@ public class HttpServer {
 	 */
 	public void service() throws IOException {
 
-		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * POOL_SIZE);
+		HandlerExecutor executor = new HandlerExecutor(options, POOL_SIZE, logger);
 		//ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE * 10, 10000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
-		try (ServerSocket serverSocket = new ServerSocket(DEFAULT_PORT, POOL_SIZE)) { // try-with-resource
+		try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) { // try-with-resource
+			// Sockets accepted through a channel can send files with FileChannel.transferTo()
+			ServerSocket serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(DEFAULT_PORT), POOL_SIZE);
 
 			logger.info("Accepting connections on port " + serverSocket.getLocalPort());
 			Socket socket = null;
 			while (true) {
+				try {
+					executor.acquire(); // waiting for a free handler
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
+				}
 				try {
 					socket = serverSocket.accept();
 					// waiting for getting the client
-					logger.info("Connect to the client on " + socket.getInetAddress().getHostName());
-					HttpHandler httpHandler = new HttpHandler(socket, this.rootpath, logger);
-					pool.submit(httpHandler); // Start the thread
+					if (options.has("log-requests")) {
+						logger.info("Connect to the client on " + socket.getInetAddress().getHostAddress());
+					}
+					HttpHandler httpHandler = new HttpHandler(socket, this.rootpath, options, mappedFiles, accessLog,
+							logger);
+					executor.execute(httpHandler); // Start the thread
 				} catch (IOException ex) {
+					executor.release();
 					logger.log(Level.SEVERE, "Accept error", ex);
 				} catch (RuntimeException ex) {
+					executor.release();
 					logger.log(Level.SEVERE, "Unexpected error" + ex.getMessage(), ex);
 				}
 			}
@@ -0,0 +1,109 @@
+package httpproxyservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * A histogram of latencies in microseconds, with buckets in the manner of
+ * HdrHistogram: values below 32 have a bucket each, above that every power of
+ * 2 is split into 16 buckets, so a percentile is off by less than 1/16 of its
+ * value. Recording only increments a counter, without locks, so handlers can
+ * record every request. The counts are kept since start.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // The buckets of a power of 2
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param micros A latency in microseconds, negative ones count as 0
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * Record the time since a start.
+	 *
+	 * @param startNanos The start, from System.nanoTime()
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS * 2) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return The largest value of a bucket
+	 */
+	private static long highest(int index) {
+		int bucket = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		if (bucket <= 1) {
+			return index;
+		}
+		return ((long) (SUB_BUCKETS + sub + 1) << (bucket - 1)) - 1;
+	}
+
+	/**
+	 * @param quantile e.g. 0.99
+	 * @return The value in microseconds which the quantile of the latencies is
+	 *         not above, 0 if none has been recorded
+	 */
+	public long quantile(double quantile) {
+		long total = 0;
+		int length = counts.length();
+		long[] snapshot = new long[length];
+		for (int i = 0; i < length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+}
@@ -0,0 +1,280 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Sends GET requests with HttpClient from a number of connections, each driven
+ * by its own thread, and reports the latencies and the throughput. In the
+ * closed loop a connection sends its next request when the response has
+ * arrived; in the open loop requests are due at a fixed rate and their
+ * latency counts from when they were due, so the waiting for a free
+ * connection is measured as well. URLs are picked from a list with Zipf
+ * popularity, the first one being the most popular.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class LoadGenerator {
+
+	public static final String USAGE = "LoadGenerator <server> <port> [--connections=16] [--duration=30] [--warmup=5]"
+			+ " [--rate=requests per second, 0 for closed loop] [--close] [--urls=/a.html,/b.png|@file]"
+			+ " [--zipf=1.0] [--seed=1] [--timeout=10000]";
+	private static final int BUFFER_SIZE = 8192;
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final double rate; // Requests per second of all connections, 0 for closed loop
+	private final boolean keepAlive;
+	private final UrlMix urls;
+	private final long seed;
+	private final int timeout;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLongArray statuses = new AtomicLongArray(600);
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder received = new LongAdder(); // Bytes of content
+	private final LongAdder opened = new LongAdder();
+	private final AtomicLong arrivals = new AtomicLong(); // The next request due in the open loop
+	private long begin; // The start of warmup
+	private long measureFrom; // The end of warmup
+	private long deadline; // No request starts after it
+
+	/**
+	 * @param host    The server
+	 * @param port    The port of server
+	 * @param options The switches listed in USAGE
+	 * @throws IOException If the file of URLs can not be read
+	 */
+	public LoadGenerator(String host, int port, ServerOptions options) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.connections = options.getInt("connections", 16);
+		this.warmupNanos = options.getLong("warmup", 5) * 1000000000L;
+		this.durationNanos = options.getLong("duration", 30) * 1000000000L;
+		this.rate = Double.parseDouble(options.get("rate", "0"));
+		this.keepAlive = !options.has("close");
+		this.urls = new UrlMix(readUrls(options.get("urls", "/index.html")),
+				Double.parseDouble(options.get("zipf", "1.0")));
+		this.seed = options.getLong("seed", 1);
+		this.timeout = options.getInt("timeout", 10000);
+		if (connections <= 0 || durationNanos <= 0 || rate < 0) {
+			throw new IllegalArgumentException("connections and duration must be positive, rate not negative");
+		}
+	}
+
+	/**
+	 * @param list URLs separated by commas, or "@" and a file with a URL on each
+	 *             line
+	 * @return The URLs, the most popular first
+	 * @throws IOException
+	 */
+	private static String[] readUrls(String list) throws IOException {
+		List<String> lines = list.startsWith("@")
+				? Files.readAllLines(Paths.get(list.substring(1)), StandardCharsets.ISO_8859_1)
+				: Arrays.asList(list.split(","));
+		List<String> urls = new ArrayList<String>();
+		for (String line : lines) {
+			String url = line.trim();
+			if (!url.isEmpty() && !url.startsWith("#")) {
+				urls.add(url);
+			}
+		}
+		if (urls.isEmpty()) {
+			throw new IllegalArgumentException("No URL in " + list);
+		}
+		return urls.toArray(new String[0]);
+	}
+
+	/**
+	 * Run the warmup and the measurement, and wait for every connection.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		Thread[] threads = new Thread[connections];
+		begin = System.nanoTime();
+		measureFrom = begin + warmupNanos;
+		deadline = measureFrom + durationNanos;
+		for (int i = 0; i < connections; i++) {
+			SplittableRandom random = new SplittableRandom(seed + i);
+			threads[i] = new Thread(() -> drive(random), "load-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Send requests on a connection until the deadline, opening it again when
+	 * it has been closed.
+	 *
+	 * @param random The generator of this connection
+	 */
+	private void drive(SplittableRandom random) {
+		HttpClient client = null;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		double interval = rate > 0 ? 1e9 / rate : 0;
+		while (true) {
+			long start;
+			if (rate > 0) {
+				start = begin + (long) (arrivals.getAndIncrement() * interval);
+				if (start >= deadline) {
+					break;
+				}
+				long wait = start - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			} else {
+				start = System.nanoTime();
+				if (start >= deadline) {
+					break;
+				}
+			}
+			boolean measured = start >= measureFrom;
+			try {
+				if (client == null) {
+					client = new HttpClient();
+					client.connect(host, port);
+					client.setTimeout(timeout);
+					opened.increment();
+				}
+				client.sendGetRequest("GET " + urls.next(random) + " HTTP/1.1", keepAlive);
+				client.receiveHeader();
+				long length = 0;
+				int len;
+				while ((len = client.readContent(buffer)) != -1) {
+					length += len;
+				}
+				if (measured) {
+					latency.recordSince(start);
+					int status = client.getStatus();
+					if (status >= 0 && status < statuses.length()) {
+						statuses.incrementAndGet(status);
+					}
+					received.add(length);
+				}
+				if (!keepAlive || !client.isKeepAlive() || !client.isContentComplete()) {
+					close(client);
+					client = null;
+				}
+			} catch (IOException ex) {
+				if (measured) {
+					errors.increment();
+				}
+				close(client);
+				client = null;
+			}
+		}
+		close(client);
+	}
+
+	private static void close(HttpClient client) {
+		if (client != null) {
+			try {
+				client.close();
+			} catch (IOException ex) {
+				// The connection is dropped anyway
+			}
+		}
+	}
+
+	/**
+	 * @return The report of the measurement, after run()
+	 */
+	public String report() {
+		double seconds = durationNanos / 1e9;
+		long requests = latency.getCount();
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("target=%s:%d connections=%d %s %s urls=%d zipf=%s warmup=%ds duration=%ds%n",
+				host, port, connections, rate > 0 ? "open-loop rate=" + rate + "/s" : "closed-loop",
+				keepAlive ? "keep-alive" : "close", urls.size(), urls.getExponent(), warmupNanos / 1000000000L,
+				durationNanos / 1000000000L));
+		report.append(String.format("requests=%d errors=%d connections-opened=%d%n", requests, errors.sum(),
+				opened.sum()));
+		report.append("status");
+		for (int i = 0; i < statuses.length(); i++) {
+			long count = statuses.get(i);
+			if (count > 0) {
+				report.append(' ').append(i).append('=').append(count);
+			}
+		}
+		report.append(System.lineSeparator());
+		report.append(String.format("throughput=%.1f req/s %.2f MB/s%n", requests / seconds,
+				received.sum() / seconds / (1024 * 1024)));
+		report.append(String.format("latency(us) mean=%d", requests == 0 ? 0 : latency.getSum() / requests));
+		for (double quantile : QUANTILES) {
+			report.append(String.format(" p%s=%d", Double.toString(quantile * 100).replaceAll("\\.0$", ""),
+					latency.quantile(quantile)));
+		}
+		report.append(String.format(" max=%d%n", latency.getMax()));
+		return report.toString();
+	}
+
+	/**
+	 * URLs picked with Zipf popularity: the one of rank k with a probability
+	 * proportional to 1 / k^exponent, an exponent of 0 picks them uniformly.
+	 */
+	private static final class UrlMix {
+
+		private final String[] urls;
+		private final double[] cumulative; // The probability of the ranks up to each one
+		private final double exponent;
+
+		UrlMix(String[] urls, double exponent) {
+			this.urls = urls;
+			this.exponent = exponent;
+			this.cumulative = new double[urls.length];
+			double sum = 0;
+			for (int i = 0; i < urls.length; i++) {
+				sum += 1 / Math.pow(i + 1, exponent);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < urls.length; i++) {
+				cumulative[i] /= sum;
+			}
+		}
+
+		String next(SplittableRandom random) {
+			int index = Arrays.binarySearch(cumulative, random.nextDouble());
+			if (index < 0) {
+				index = -index - 1;
+			}
+			return urls[Math.min(index, urls.length - 1)];
+		}
+
+		int size() {
+			return urls.length;
+		}
+
+		double getExponent() {
+			return exponent;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: " + USAGE);
+			System.exit(1);
+		}
+		LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), new ServerOptions(args, 2));
+		generator.run();
+		System.out.print(generator.report());
+	}
+}
@@ -0,0 +1,154 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Keeps large files the server sends again and again mapped into memory, so a
+ * request neither opens the file nor copies it, the handler writes the pages
+ * of the mapping to the socket. A file is mapped on its second request, the
+ * first ones of files requested once are not worth a mapping. A mapping is
+ * checked against the length and the modification time of file on every use
+ * and mapped again when the file has changed. The least recently used
+ * mappings are dropped beyond a budget of bytes, their memory is released once
+ * no handler sends from them any more.
+ *
+ * Files must be replaced, e.g. moved over, not truncated in place, while they
+ * are mapped.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class MappedFileCache {
+
+	private static final int MAX_CANDIDATES = 1024; // The files requested once remembered at most
+	private final long capacity; // The budget in bytes
+	private final long minLength; // Smaller files are sent from the file
+	private final LinkedHashMap<String, Mapping> mappings; // In the order of use
+	private final LinkedHashMap<String, Boolean> candidates; // The files requested once
+	private long size; // The bytes mapped
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder maps = new LongAdder();
+
+	/**
+	 * @param capacity  The budget in bytes
+	 * @param minLength The length of the smallest file mapped
+	 */
+	public MappedFileCache(long capacity, long minLength) {
+		this.capacity = capacity;
+		this.minLength = minLength;
+		this.mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true);
+		this.candidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_CANDIDATES;
+			}
+		};
+	}
+
+	/**
+	 * Get the content of a file from its mapping, mapping it if it is requested
+	 * again.
+	 *
+	 * @param file
+	 * @return A buffer of the whole file, or null if it is sent from the file
+	 */
+	public ByteBuffer get(File file) {
+		long length = file.length();
+		long modified = file.lastModified();
+		// A buffer can not hold more than 2GB
+		if (length < minLength || length > capacity || length > Integer.MAX_VALUE) {
+			return null;
+		}
+		String key = file.getPath();
+		synchronized (this) {
+			Mapping mapping = mappings.get(key);
+			if (mapping != null) {
+				if (mapping.length == length && mapping.modified == modified) {
+					hits.increment();
+					return mapping.buffer.duplicate();
+				}
+				mappings.remove(key); // The file has changed
+				size -= mapping.length;
+			} else if (candidates.remove(key) == null) {
+				candidates.put(key, Boolean.TRUE);
+				return null;
+			}
+		}
+		MappedByteBuffer buffer;
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} catch (IOException ex) {
+			return null;
+		}
+		maps.increment();
+		synchronized (this) {
+			Mapping old = mappings.put(key, new Mapping(buffer, length, modified));
+			size += length;
+			if (old != null) {
+				size -= old.length; // Mapped by another handler meanwhile
+			}
+			Iterator<Mapping> eldest = mappings.values().iterator();
+			while (size > capacity && eldest.hasNext()) {
+				size -= eldest.next().length;
+				eldest.remove();
+			}
+		}
+		return buffer.duplicate();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getFiles() {
+		return mappings.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMaps() {
+		return maps.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Mapped files: " + getSize() + " of " + capacity + " bytes in " + getFiles() + " files, " + getHits()
+				+ " hits, " + getMaps() + " maps";
+	}
+
+	/**
+	 * A file mapped into memory, as it was when mapped.
+	 */
+	private static final class Mapping {
+
+		private final MappedByteBuffer buffer;
+		private final long length;
+		private final long modified;
+
+		Mapping(MappedByteBuffer buffer, long length, long modified) {
+			this.buffer = buffer;
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+}
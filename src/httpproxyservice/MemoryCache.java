@@ -0,0 +1,303 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * The hot objects of proxy kept in direct buffers outside the Java heap, in
+ * front of the cache files. The cache holds at most capacity bytes. When it is
+ * full the least recently used object is evicted, but only if the new object
+ * has been requested more often than it (TinyLFU admission), so a burst of
+ * objects requested once does not flush the hot ones.
+ *
+ * @author Li Taiji
+ * @date 2019-12-11
+ *
+ */
+public class MemoryCache {
+
+	private final long capacity; // bytes
+	private final long maxObject; // The largest object kept, in bytes
+	private final LinkedHashMap<String, Entry> entries; // Least recently used first
+	private final FrequencySketch sketch;
+	private long size; // bytes held
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	/**
+	 * @param capacity  The bytes the cache may hold
+	 * @param maxObject The largest object kept, in bytes
+	 */
+	public MemoryCache(long capacity, long maxObject) {
+		this.capacity = capacity;
+		this.maxObject = Math.min(maxObject, capacity);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		// About one counter per object of 4 KB
+		this.sketch = new FrequencySketch((int) Math.min(Math.max(capacity / 4096, 1024), 1 << 24));
+	}
+
+	/**
+	 * Get the object and count the request.
+	 *
+	 * @param url The URL of request
+	 * @return The object, or null if it is not cached
+	 */
+	public Entry get(String url) {
+		Entry entry;
+		synchronized (this) {
+			sketch.increment(url);
+			entry = entries.get(url);
+		}
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Get the object without counting the request.
+	 *
+	 * @param url The URL of request
+	 * @return The object, or null if it is not cached
+	 */
+	public synchronized Entry peek(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * @param length The length of object
+	 * @return true if an object of this length may be cached
+	 */
+	public boolean accepts(long length) {
+		return length >= 0 && length <= maxObject;
+	}
+
+	/**
+	 * Tell whether put() would cache the object now, so a buffer is only
+	 * allocated for an object which is likely admitted. A rejection is counted.
+	 *
+	 * @param url    The URL of request
+	 * @param length The length of object
+	 * @return true if the object may be cached
+	 */
+	public synchronized boolean wouldAdmit(String url, long length) {
+		if (!accepts(length)) {
+			return false;
+		}
+		if (entries.containsKey(url) || admits(url, length)) {
+			return true; // A cached object is replaced by its new version
+		}
+		rejections.increment();
+		return false;
+	}
+
+	/**
+	 * @return true if the object is requested more often than the objects it
+	 *         would evict, which are checked before evicting any of them
+	 */
+	private boolean admits(String url, long length) {
+		int frequency = sketch.frequency(url);
+		long freed = 0;
+		Iterator<Entry> victims = entries.values().iterator();
+		while (size - freed + length > capacity && victims.hasNext()) {
+			Entry victim = victims.next();
+			if (sketch.frequency(victim.url) >= frequency) {
+				return false;
+			}
+			freed += victim.length;
+		}
+		return true;
+	}
+
+	/**
+	 * Cache the object if it is requested more often than the objects it would
+	 * evict.
+	 *
+	 * @param url         The URL of request
+	 * @param data        The content, positioned at its start
+	 * @param contentType The type of content
+	 */
+	public synchronized void put(String url, ByteBuffer data, String contentType) {
+		long length = data.remaining();
+		if (!accepts(length)) {
+			return;
+		}
+		Entry old = entries.remove(url);
+		if (old != null) {
+			size -= old.length;
+		}
+		if (!admits(url, length)) {
+			rejections.increment();
+			return;
+		}
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (size + length > capacity && iterator.hasNext()) {
+			size -= iterator.next().getValue().length;
+			iterator.remove();
+			evictions.increment();
+		}
+		entries.put(url, new Entry(url, data.asReadOnlyBuffer(), contentType));
+		size += length;
+	}
+
+	/**
+	 * Read the file into the cache if it is small enough and may be admitted.
+	 *
+	 * @param url         The URL of request
+	 * @param file        The cache file
+	 * @param contentType The type of content
+	 * @throws IOException
+	 */
+	public void load(String url, File file, String contentType) throws IOException {
+		long length = file.length();
+		if (!wouldAdmit(url, length)) {
+			return;
+		}
+		ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (data.hasRemaining() && fileChannel.read(data) != -1) {
+				// Fill the buffer
+			}
+		}
+		if (!data.hasRemaining()) {
+			data.flip();
+			put(url, data, contentType);
+		}
+	}
+
+	/**
+	 * Remove the object, because the origin has changed it.
+	 *
+	 * @param url The URL of request
+	 */
+	public synchronized void invalidate(String url) {
+		Entry old = entries.remove(url);
+		if (old != null) {
+			size -= old.length;
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Memory cache: " + getSize() + "/" + capacity + " bytes, " + getHits() + " hits, " + getMisses()
+				+ " misses, " + getEvictions() + " evictions, " + getRejections() + " rejected";
+	}
+
+	/**
+	 * A cached object.
+	 */
+	public static final class Entry {
+
+		private final String url;
+		private final ByteBuffer data; // Read only
+		private final String contentType;
+		private final long length;
+
+		Entry(String url, ByteBuffer data, String contentType) {
+			this.url = url;
+			this.data = data;
+			this.contentType = contentType;
+			this.length = data.remaining();
+		}
+
+		/**
+		 * @return A view of the content, which the caller may consume
+		 */
+		public ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Approximate request counts of recently requested URLs, in four rows of
+	 * 4-bit counters (count-min sketch). All counts are halved periodically so
+	 * old popularity fades.
+	 */
+	private static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+		private final byte[][] table;
+		private final int mask;
+		private final int sampleSize; // Increments between two halvings
+		private int additions;
+
+		FrequencySketch(int width) {
+			int size = Integer.highestOneBit(width - 1) << 1;
+			this.table = new byte[SEEDS.length][size];
+			this.mask = size - 1;
+			this.sampleSize = size * 10;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				if (table[i][index] < 15) {
+					table[i][index]++;
+				}
+			}
+			if (++additions >= sampleSize) {
+				for (byte[] row : table) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] >>= 1;
+					}
+				}
+				additions /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = 15;
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency = Math.min(frequency, table[i][index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * A non-blocking client connection of the proxy. The event loop reads the
+ * request into a buffer and only hands the connection to a worker once a
+ * complete request header has arrived, so idle keep-alive connections hold no
+ * thread. The worker answers through streams whose bytes are moved to and from
+ * the socket by the loop when the channel is ready.
+ *
+ * @author Li Taiji
+ * @date 2019-12-07
+ *
+ */
+public class NioConnection {
+
+	private static final int INPUT_LIMIT = 64 * 1024; // Bytes buffered from the client
+	private static final int OUTPUT_LIMIT = 256 * 1024; // Bytes queued for the client
+	private final SocketChannel channel;
+	private final NioEventLoop loop;
+	private final ExecutorService workers;
+	private final Logger logger; // The log file
+	private final ChannelInput input;
+	private final ChannelOutput output;
+	private final HttpProxyHandler handler;
+	private final ProxyMetrics metrics;
+	private final Runnable released; // Called once the connection is closed
+	private SelectionKey key;
+	private boolean busy; // A worker is answering this connection, only used on the loop thread
+	private volatile boolean closed;
+
+	/**
+	 * @param channel  The channel with client
+	 * @param loop     The loop driving the channel
+	 * @param workers  The pool answering requests
+	 * @param context  The state of proxy server
+	 * @param released Called once the connection is closed, e.g. to accept
+	 *                 another
+	 * @throws IOException
+	 */
+	public NioConnection(SocketChannel channel, NioEventLoop loop, ExecutorService workers, ProxyContext context,
+			Runnable released) throws IOException {
+		channel.configureBlocking(false);
+		this.channel = channel;
+		this.loop = loop;
+		this.workers = workers;
+		this.logger = context.getLogger();
+		this.input = new ChannelInput();
+		this.output = new ChannelOutput();
+		this.handler = new HttpProxyHandler(output, input, output, (InetSocketAddress) channel.getRemoteAddress(),
+				context);
+		this.metrics = context.getMetrics();
+		this.released = released;
+		metrics.connectionOpened();
+	}
+
+	/**
+	 * Register the connection to the selector of loop, must be called on the
+	 * loop thread.
+	 *
+	 * @throws ClosedChannelException
+	 */
+	void register() throws ClosedChannelException {
+		key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * The channel has bytes to read.
+	 *
+	 * @throws IOException
+	 */
+	void onReadable() throws IOException {
+		input.fill();
+		if (input.isFull() || input.isEof()) {
+			setInterest(SelectionKey.OP_READ, false);
+		}
+		if (!busy) {
+			resume();
+		}
+	}
+
+	/**
+	 * The channel can accept more bytes.
+	 *
+	 * @throws IOException
+	 */
+	void onWritable() throws IOException {
+		if (output.drain()) {
+			setInterest(SelectionKey.OP_WRITE, false);
+			if (output.isClosing()) {
+				close();
+			}
+		} else {
+			setInterest(SelectionKey.OP_WRITE, true);
+		}
+	}
+
+	/**
+	 * Close the connection immediately, may be called on any thread.
+	 */
+	void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		metrics.connectionClosed();
+		released.run();
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			logger.log(Level.FINE, "Close error", ex);
+		}
+		synchronized (input) {
+			input.notifyAll();
+		}
+		synchronized (output) {
+			output.notifyAll();
+		}
+	}
+
+	/**
+	 * Decide what to do with an idle connection, on the loop thread.
+	 */
+	private void resume() {
+		if (closed) {
+			return;
+		}
+		if (input.hasRequestHead()) {
+			busy = true;
+			workers.execute(this::serve);
+		} else if (input.isEof() || input.isFull()) {
+			// The client has gone, or the request header is too large
+			close();
+		} else {
+			setInterest(SelectionKey.OP_READ, true);
+		}
+	}
+
+	/**
+	 * Answer the buffered requests, on a worker thread.
+	 */
+	private void serve() {
+		boolean keepAlive = false;
+		try {
+			do {
+				keepAlive = handler.handleRequest();
+			} while (keepAlive && handler.hasBufferedInput());
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Resolve Request Error", ex);
+		} catch (RuntimeException ex) {
+			logger.log(Level.SEVERE, "Unexpected error" + ex.getMessage(), ex);
+		}
+		if (!keepAlive) {
+			output.close();
+		}
+		loop.execute(() -> {
+			busy = false;
+			resume();
+		});
+	}
+
+	/**
+	 * Change the interest set of key, on the loop thread.
+	 *
+	 * @param operation
+	 * @param on
+	 */
+	private void setInterest(int operation, boolean on) {
+		if (key != null && key.isValid()) {
+			int ops = key.interestOps();
+			key.interestOps(on ? ops | operation : ops & ~operation);
+		}
+	}
+
+	/**
+	 * The bytes read from the channel, waiting for the worker.
+	 */
+	private final class ChannelInput extends InputStream {
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(INPUT_LIMIT); // Kept in write mode
+		private boolean eof;
+
+		/**
+		 * Read from the channel, on the loop thread.
+		 *
+		 * @throws IOException
+		 */
+		synchronized void fill() throws IOException {
+			if (channel.read(buffer) < 0) {
+				eof = true;
+			}
+			notifyAll();
+		}
+
+		synchronized boolean isFull() {
+			return !buffer.hasRemaining();
+		}
+
+		synchronized boolean isEof() {
+			return eof;
+		}
+
+		/**
+		 * @return true if the buffer holds a whole request header
+		 */
+		synchronized boolean hasRequestHead() {
+			boolean lineEnd = false;
+			for (int i = 0; i < buffer.position(); i++) {
+				byte c = buffer.get(i);
+				if (c == '\n') {
+					if (lineEnd) {
+						return true;
+					}
+					lineEnd = true;
+				} else if (c != '\r') {
+					lineEnd = false;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (buffer.position() == 0 && !eof && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (buffer.position() == 0) {
+				return -1;
+			}
+			boolean wasFull = !buffer.hasRemaining();
+			buffer.flip();
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			buffer.compact();
+			if (wasFull && !eof) {
+				loop.execute(() -> setInterest(SelectionKey.OP_READ, true));
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int available() {
+			return buffer.position();
+		}
+	}
+
+	/**
+	 * The bytes written by the worker, waiting for the channel.
+	 */
+	private final class ChannelOutput extends OutputStream {
+
+		private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+		private int queued; // Bytes in the queue
+		private boolean writing; // The loop has been asked to write
+		private boolean closing;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (queued >= OUTPUT_LIMIT && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (closed || closing) {
+				throw new IOException("Connection closed");
+			}
+			if (len == 0) {
+				return;
+			}
+			queue.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+			queued += len;
+			if (!writing) {
+				writing = true;
+				loop.execute(() -> {
+					try {
+						onWritable();
+					} catch (IOException ex) {
+						logger.log(Level.FINE, "Send error", ex);
+						close();
+					}
+				});
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		/**
+		 * Close the connection once the queued bytes are written.
+		 */
+		@Override
+		public synchronized void close() {
+			if (closing) {
+				return;
+			}
+			closing = true;
+			if (!writing) {
+				loop.execute(NioConnection.this::close);
+			}
+		}
+
+		synchronized boolean isClosing() {
+			return closing;
+		}
+
+		/**
+		 * Write the queue to the channel, on the loop thread.
+		 *
+		 * @return true if the queue is empty
+		 * @throws IOException
+		 */
+		synchronized boolean drain() throws IOException {
+			while (!queue.isEmpty()) {
+				ByteBuffer head = queue.peek();
+				queued -= channel.write(head);
+				if (head.hasRemaining()) {
+					notifyAll();
+					return false;
+				}
+				queue.poll();
+			}
+			writing = false;
+			notifyAll();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * A selector thread that drives the reads and writes of many non-blocking
+ * client connections. Other threads never touch the selector directly, they
+ * hand tasks to the loop with execute().
+ *
+ * @author Li Taiji
+ * @date 2019-12-07
+ *
+ */
+public class NioEventLoop implements Runnable {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks; // Tasks posted by other threads
+	private final Logger logger; // The log file
+
+	/**
+	 * @param logger Log file
+	 * @throws IOException If the selector can not be opened
+	 */
+	public NioEventLoop(Logger logger) throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.logger = logger;
+	}
+
+	/**
+	 * Get the selector of loop, only to be used on the loop thread.
+	 *
+	 * @return selector
+	 */
+	Selector selector() {
+		return selector;
+	}
+
+	/**
+	 * Run the task on the loop thread.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	/**
+	 * Implement run thread
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (CancelledKeyException ex) {
+						connection.close();
+					} catch (IOException ex) {
+						logger.log(Level.FINE, "Connection error", ex);
+						connection.close();
+					}
+				}
+			} catch (IOException ex) {
+				logger.log(Level.SEVERE, "Select error", ex);
+			} catch (RuntimeException ex) {
+				logger.log(Level.SEVERE, "Unexpected error" + ex.getMessage(), ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * The state of proxy server shared by all of its handlers.
+ *
+ * @author Li Taiji
+ * @date 2019-12-09
+ *
+ */
+public class ProxyContext {
+
+	private final String rootpath; // Proxy Server root path
+	private final ServerOptions options; // Optional switches
+	private final Logger logger; // The log file
+	private final ProxyMetrics metrics; // Counters and latencies
+	private final UpstreamPool upstreamPool; // Connections to the origin
+	private final MemoryCache memoryCache; // Hot objects, null if disabled
+	private final SingleFlight singleFlight; // Fetches from the origin in progress
+	private final CacheIndex cacheIndex; // The entries of cached objects
+	private final CacheWriter cacheWriter; // Writes the cache files behind the handlers
+	private final CacheEvictor cacheEvictor; // Keeps the cache files in budget, null if unlimited
+	private final SparseCache sparseCache; // Objects fetched in ranges, null if disabled
+	private final PutBatcher putBatcher; // Forwards small uploads in bursts, null for write-through only
+	private final ExecutorService prefetcher; // Fetches for pipelined requests, null if disabled
+	private final AccessLog accessLog; // The log of requests, null if disabled
+	private final ScheduledExecutorService scheduler; // Background tasks
+
+	/**
+	 * @param rootpath The root path of proxy server
+	 * @param options  The switches of proxy server
+	 * @param logger   Log file
+	 * @throws IOException If the cache index can not be opened
+	 */
+	public ProxyContext(String rootpath, ServerOptions options, Logger logger) throws IOException {
+		this.rootpath = rootpath;
+		this.options = options;
+		this.logger = logger;
+		this.metrics = new ProxyMetrics();
+		this.upstreamPool = new UpstreamPool(options.getInt("upstream-connections", 32),
+				options.getLong("upstream-idle", 30000), options.getLong("upstream-wait", 10000),
+				metrics.getConnectLatency(), logger);
+		long memoryCacheSize = options.getLong("memory-cache", 64L * 1024 * 1024);
+		this.memoryCache = memoryCacheSize > 0
+				? new MemoryCache(memoryCacheSize, options.getLong("memory-cache-object", 1024 * 1024))
+				: null;
+		this.singleFlight = new SingleFlight();
+		this.cacheIndex = new CacheIndex(new File(rootpath + "\\.cache.idx"), logger);
+		if (cacheIndex.isCreated()) {
+			int imported = importCacheFiles(new File(rootpath), "");
+			if (imported > 0) {
+				logger.info("Cache index: imported " + imported + " files cached by an older version");
+			}
+		}
+		this.cacheWriter = new CacheWriter(new File(rootpath), options.getLong("cache-write-buffer", 16L * 1024 * 1024),
+				options.getLong("cache-min-free", 64L * 1024 * 1024), logger);
+		int sparseFiles = options.getInt("sparse-files", 64);
+		this.sparseCache = sparseFiles > 0 ? new SparseCache(sparseFiles,
+				options.getLong("sparse-bytes", 256L * 1024 * 1024)) : null;
+		if (options.has("put-write-back")) {
+			this.putBatcher = new PutBatcher(upstreamPool, options.getInt("put-batch", 32),
+					options.getLong("put-batch-buffer", 4L * 1024 * 1024), options.getLong("put-batch-object", 64 * 1024),
+					url -> {
+						try {
+							invalidate(url);
+						} catch (IOException ex) {
+							logger.log(Level.WARNING, "Can not invalidate " + url, ex);
+						}
+					}, logger);
+		} else {
+			this.putBatcher = null;
+		}
+		int accessLogRecords = options.getInt("access-log-buffer", 8192);
+		this.accessLog = accessLogRecords > 0
+				? new AccessLog(new File(options.get("access-log", "./logger/HTTPProxyAccess.log")), accessLogRecords,
+						options.getLong("access-log-limit", 10L * 1024 * 1024), options.getInt("access-log-count", 2),
+						logger)
+				: null;
+		int prefetchThreads = options.getInt("prefetch-threads", 16);
+		if (prefetchThreads > 0) {
+			// Prefetching only saves time, so the tasks beyond the queue are dropped
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(256), r -> {
+						Thread thread = new Thread(r, "proxy-prefetch");
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.DiscardPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			this.prefetcher = pool;
+		} else {
+			this.prefetcher = null;
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "proxy-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(cacheIndex::force, 1, 1, TimeUnit.SECONDS);
+		scheduler.scheduleWithFixedDelay(cacheIndex::compactIfNeeded, 60, 60, TimeUnit.SECONDS);
+		scheduler.scheduleWithFixedDelay(() -> logger.info(cacheWriter.toString()), 60, 60, TimeUnit.SECONDS);
+		long diskCacheSize = options.getLong("disk-cache", 1024L * 1024 * 1024);
+		if (diskCacheSize > 0) {
+			this.cacheEvictor = new CacheEvictor(cacheIndex, memoryCache, rootpath, diskCacheSize, logger);
+			scheduler.scheduleWithFixedDelay(cacheEvictor, 1, 1, TimeUnit.SECONDS);
+			scheduler.scheduleWithFixedDelay(() -> logger.info(cacheEvictor.report()), 60, 60, TimeUnit.SECONDS);
+		} else {
+			this.cacheEvictor = null;
+		}
+		if (memoryCache != null) {
+			scheduler.scheduleWithFixedDelay(() -> logger.info(memoryCache.toString()), 60, 60, TimeUnit.SECONDS);
+		}
+		registerMetrics();
+	}
+
+	/**
+	 * Register the state of the parts of proxy with the metrics.
+	 */
+	private void registerMetrics() {
+		metrics.register("proxy_cache_entries", "gauge", "Objects in the cache index", cacheIndex::size);
+		metrics.register("proxy_cache_write_pending_bytes", "gauge", "Bytes waiting for the cache writer",
+				cacheWriter::getPending);
+		metrics.register("proxy_cache_written_bytes_total", "counter", "Bytes written to cache files",
+				cacheWriter::getWritten);
+		metrics.register("proxy_cache_published_total", "counter", "Cache files published",
+				cacheWriter::getPublished);
+		metrics.register("proxy_cache_write_dropped_total", "counter", "Cache files dropped by the writer",
+				cacheWriter::getDropped);
+		if (cacheEvictor != null) {
+			metrics.register("proxy_disk_cache_bytes", "gauge", "Bytes of cache files", cacheEvictor::getUsedBytes);
+			metrics.register("proxy_disk_cache_capacity_bytes", "gauge", "Budget of cache files",
+					cacheEvictor::getCapacity);
+			metrics.register("proxy_disk_cache_evicted_total", "counter", "Cache files evicted",
+					cacheEvictor::getEvictedFiles);
+			metrics.register("proxy_disk_cache_evicted_bytes_total", "counter",
+					"Bytes of cache files and their variants evicted", cacheEvictor::getEvictedBytes);
+		}
+		if (memoryCache != null) {
+			metrics.register("proxy_memory_cache_bytes", "gauge", "Bytes of the memory cache", memoryCache::getSize);
+			metrics.register("proxy_memory_cache_hits_total", "counter", "Objects sent from memory",
+					memoryCache::getHits);
+			metrics.register("proxy_memory_cache_misses_total", "counter", "Objects not found in memory",
+					memoryCache::getMisses);
+		}
+		if (sparseCache != null) {
+			metrics.register("proxy_sparse_files", "gauge", "Objects cached in parts", sparseCache::size);
+			metrics.register("proxy_sparse_bytes", "gauge", "Full lengths of the objects cached in parts",
+					sparseCache::getBytes);
+		}
+		if (putBatcher != null) {
+			metrics.register("proxy_put_pending_bytes", "gauge", "Bytes of uploads waiting to be forwarded",
+					putBatcher::getPending);
+		}
+		if (accessLog != null) {
+			metrics.register("proxy_access_log_dropped_total", "counter", "Access log records dropped",
+					accessLog::getDropped);
+		}
+	}
+
+	/**
+	 * Add the files cached before the index existed, once when it is created, so
+	 * requests only look at the index. The error pages, temp files, sparse files
+	 * and compressed variants are left out.
+	 *
+	 * @param dir    The directory of cache
+	 * @param prefix The URL of directory
+	 * @return The number of files imported
+	 * @throws IOException If the cache index can not be written
+	 */
+	private int importCacheFiles(File dir, String prefix) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int imported = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(".") || name.matches(".*\\.part\\d+") || name.endsWith(".sparse")) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				if (!prefix.isEmpty() || !name.equals("response")) {
+					imported += importCacheFiles(file, prefix + "/" + name);
+				}
+			} else if (!isVariant(file)) {
+				cacheIndex.put(CacheEntry.fromFile(prefix + "/" + name, file));
+				imported++;
+			}
+		}
+		return imported;
+	}
+
+	private static boolean isVariant(File file) {
+		String path = file.getPath();
+		for (String coding : new String[] { "gzip", "deflate" }) {
+			String suffix = Compression.suffix(coding);
+			if (path.endsWith(suffix) && new File(path.substring(0, path.length() - suffix.length())).exists()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove an object changed on the origin from the cache. A fetch of the
+	 * object in flight is not waited for, it is marked first so it does not
+	 * publish the old content afterwards.
+	 *
+	 * @param url The URL of object
+	 * @throws IOException If the cache index can not be written
+	 */
+	public void invalidate(String url) throws IOException {
+		singleFlight.invalidate(url);
+		if (sparseCache != null) {
+			sparseCache.remove(url);
+		}
+		cacheIndex.remove(url);
+		if (memoryCache != null) {
+			memoryCache.invalidate(url);
+		}
+		File file = new File(rootpath + url.replaceAll("/", "\\\\"));
+		file.delete();
+		Compression.deleteVariants(file);
+	}
+
+	public String getRootpath() {
+		return rootpath;
+	}
+
+	public ServerOptions getOptions() {
+		return options;
+	}
+
+	public Logger getLogger() {
+		return logger;
+	}
+
+	public UpstreamPool getUpstreamPool() {
+		return upstreamPool;
+	}
+
+	public MemoryCache getMemoryCache() {
+		return memoryCache;
+	}
+
+	public SingleFlight getSingleFlight() {
+		return singleFlight;
+	}
+
+	public CacheIndex getCacheIndex() {
+		return cacheIndex;
+	}
+
+	public CacheWriter getCacheWriter() {
+		return cacheWriter;
+	}
+
+	public CacheEvictor getCacheEvictor() {
+		return cacheEvictor;
+	}
+
+	public ProxyMetrics getMetrics() {
+		return metrics;
+	}
+
+	public AccessLog getAccessLog() {
+		return accessLog;
+	}
+
+	public SparseCache getSparseCache() {
+		return sparseCache;
+	}
+
+	public PutBatcher getPutBatcher() {
+		return putBatcher;
+	}
+
+	public ExecutorService getPrefetcher() {
+		return prefetcher;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+}
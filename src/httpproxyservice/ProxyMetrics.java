@@ -0,0 +1,191 @@
+package httpproxyservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * The counters and latencies of proxy server, sent in the text format of
+ * Prometheus to a request for PATH. Handlers count every request by its
+ * status and how the cache answered it; the state of other parts, e.g. the
+ * cache writer, is read when the metrics are sent, from the suppliers
+ * registered.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class ProxyMetrics {
+
+	public static final String PATH = "/_proxy/metrics"; // Answered by the proxy, never fetched
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private final AtomicLongArray requests = new AtomicLongArray(600); // By status
+	private final LongAdder[] cacheResults;
+	private final LongAdder cacheBytes = new LongAdder();
+	private final LongAdder originBytes = new LongAdder();
+	private final LongAdder connections = new LongAdder(); // Open now
+	private final LatencyHistogram requestLatency = new LatencyHistogram();
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram firstByteLatency = new LatencyHistogram();
+	private final LatencyHistogram transferLatency = new LatencyHistogram();
+	private final List<Metric> registered = new ArrayList<Metric>();
+
+	/**
+	 * How the cache answered a GET request.
+	 */
+	public enum CacheResult {
+		HIT, // Fresh in the cache
+		COALESCED, // Cached by the fetch of another handler meanwhile
+		REVALIDATED, // Stale in the cache, but not changed on the origin
+		MISS, // Fetched from the origin
+		RANGE // Ranges sent from the sparse file, the missing ones fetched
+	}
+
+	public ProxyMetrics() {
+		this.cacheResults = new LongAdder[CacheResult.values().length];
+		for (int i = 0; i < cacheResults.length; i++) {
+			cacheResults[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Count a request answered.
+	 *
+	 * @param status     The status of response, 0 if none was sent
+	 * @param micros     The time taken to answer
+	 * @param result     How the cache answered, or null if it was not asked
+	 * @param sentLength The length of content sent, -1 if unknown
+	 */
+	public void request(int status, long micros, CacheResult result, long sentLength) {
+		if (status > 0 && status < requests.length()) {
+			requests.incrementAndGet(status);
+		}
+		requestLatency.record(micros);
+		if (result != null) {
+			cacheResults[result.ordinal()].increment();
+			if (result != CacheResult.MISS && result != CacheResult.RANGE && sentLength > 0) {
+				cacheBytes.add(sentLength);
+			}
+		}
+	}
+
+	/**
+	 * @param bytes The bytes of content received from the origin
+	 */
+	public void received(long bytes) {
+		originBytes.add(bytes);
+	}
+
+	public void connectionOpened() {
+		connections.increment();
+	}
+
+	public void connectionClosed() {
+		connections.decrement();
+	}
+
+	/**
+	 * Register a value read when the metrics are sent.
+	 *
+	 * @param name     The name of metric
+	 * @param type     "gauge" or "counter"
+	 * @param help     The description of metric
+	 * @param supplier
+	 */
+	public synchronized void register(String name, String type, String help, LongSupplier supplier) {
+		registered.add(new Metric(name, type, help, supplier));
+	}
+
+	/**
+	 * @return The metrics in the text format of Prometheus
+	 */
+	public String render() {
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "proxy_requests_total", "counter", "Requests answered, by status");
+		for (int status = 100; status < requests.length(); status++) {
+			long value = requests.get(status);
+			if (value > 0) {
+				out.append("proxy_requests_total{code=\"").append(status).append("\"} ").append(value).append('\n');
+			}
+		}
+		header(out, "proxy_cache_requests_total", "counter", "GET requests, by how the cache answered them");
+		for (CacheResult result : CacheResult.values()) {
+			out.append("proxy_cache_requests_total{result=\"").append(result.name().toLowerCase()).append("\"} ")
+					.append(cacheResults[result.ordinal()].sum()).append('\n');
+		}
+		value(out, "proxy_cache_bytes_total", "counter", "Bytes of content sent from the cache", cacheBytes.sum());
+		value(out, "proxy_origin_bytes_total", "counter", "Bytes of content received from the origin",
+				originBytes.sum());
+		value(out, "proxy_connections", "gauge", "Client connections open", connections.sum());
+		summary(out, "proxy_request_duration_seconds", "Time to answer a request", requestLatency);
+		summary(out, "proxy_upstream_connect_seconds", "Time to open a connection to the origin", connectLatency);
+		summary(out, "proxy_upstream_first_byte_seconds",
+				"Time from sending a request to the origin to receiving its header", firstByteLatency);
+		summary(out, "proxy_upstream_transfer_seconds", "Time to receive a content from the origin",
+				transferLatency);
+		synchronized (this) {
+			for (Metric metric : registered) {
+				value(out, metric.name, metric.type, metric.help, metric.supplier.getAsLong());
+			}
+		}
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void value(StringBuilder out, String name, String type, String help, long value) {
+		header(out, name, type, help);
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+		header(out, name, "summary", help);
+		for (double quantile : QUANTILES) {
+			out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(seconds(histogram.quantile(quantile))).append('\n');
+		}
+		out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+		out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	private static String seconds(long micros) {
+		return Double.toString(micros / 1e6);
+	}
+
+	public LatencyHistogram getConnectLatency() {
+		return connectLatency;
+	}
+
+	public LatencyHistogram getFirstByteLatency() {
+		return firstByteLatency;
+	}
+
+	public LatencyHistogram getTransferLatency() {
+		return transferLatency;
+	}
+
+	/**
+	 * A value of another part of proxy.
+	 */
+	private static final class Metric {
+
+		private final String name;
+		private final String type;
+		private final String help;
+		private final LongSupplier supplier;
+
+		Metric(String name, String type, String help, LongSupplier supplier) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+			this.supplier = supplier;
+		}
+	}
+}
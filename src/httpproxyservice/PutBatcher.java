@@ -0,0 +1,180 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * Forwards small PUT requests to the origin behind the handlers. The handler
+ * keeps the content in memory and answers at once, a single thread takes the
+ * queued uploads in order and sends a burst of them through one pooled
+ * connection with a single flush, then reads their responses. The origin
+ * confirms each upload, which invalidates the cached object. Uploads beyond the
+ * buffer are written through by the handler instead.
+ *
+ * @author Li Taiji
+ * @date 2019-12-20
+ *
+ */
+public class PutBatcher {
+
+	private static final int BUFFER_SIZE = 8192; // The bytes of a response read at a time
+	private final UpstreamPool upstreamPool;
+	private final int maxBatch; // The most uploads sent in a burst
+	private final long maxPending; // The most bytes of uploads waiting
+	private final long maxObject; // The largest content batched
+	private final Consumer<String> confirmed; // Called with the URL of every upload the origin accepts
+	private final Logger logger;
+	private final LinkedBlockingQueue<Put> queue;
+	private final AtomicLong pending = new AtomicLong();
+
+	/**
+	 * @param upstreamPool The connections to the origin
+	 * @param maxBatch     The most uploads sent in a burst
+	 * @param maxPending   The most bytes of uploads waiting
+	 * @param maxObject    The largest content batched
+	 * @param confirmed    Called with the URL of every upload the origin accepts
+	 * @param logger       Log file
+	 */
+	public PutBatcher(UpstreamPool upstreamPool, int maxBatch, long maxPending, long maxObject,
+			Consumer<String> confirmed, Logger logger) {
+		this.upstreamPool = upstreamPool;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.maxPending = maxPending;
+		this.maxObject = maxObject;
+		this.confirmed = confirmed;
+		this.logger = logger;
+		this.queue = new LinkedBlockingQueue<Put>();
+		Thread thread = new Thread(this::run, "put-batcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param length The length of content
+	 * @return true if an upload of this length can be batched now
+	 */
+	public boolean accepts(long length) {
+		return length >= 0 && length <= maxObject && pending.get() + length <= maxPending;
+	}
+
+	/**
+	 * Queue an upload, accepted with accepts() before its content was read.
+	 *
+	 * @param url       The URL of the object changed
+	 * @param startLine The request line sent to server
+	 * @param fields    Other attributes of request, e.g. "Content-Type: ..."
+	 * @param content
+	 */
+	public void submit(String url, String startLine, String[] fields, byte[] content) {
+		pending.addAndGet(content.length);
+		queue.add(new Put(url, startLine, fields, content));
+	}
+
+	/**
+	 * Forward the queued uploads, on the batcher thread.
+	 */
+	private void run() {
+		List<Put> batch = new ArrayList<Put>(maxBatch);
+		while (true) {
+			batch.clear();
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException ex) {
+				return;
+			}
+			queue.drainTo(batch, maxBatch - 1);
+			try {
+				forward(batch);
+			} catch (RuntimeException ex) {
+				logger.log(Level.SEVERE, "Unexpected error in put batcher" + ex.getMessage(), ex);
+			} finally {
+				for (Put put : batch) {
+					pending.addAndGet(-put.content.length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send a burst of uploads and read their responses. If the connection fails,
+	 * the uploads not confirmed yet are sent again once on a new one, PUT is
+	 * idempotent.
+	 */
+	private void forward(List<Put> batch) {
+		int done = 0;
+		for (int attempt = 0; attempt < 2 && done < batch.size(); attempt++) {
+			HttpClient httpClient;
+			try {
+				httpClient = upstreamPool.checkout(HttpServer.SERVER_HOST, HttpServer.DEFAULT_PORT);
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Can not connect to forward uploads", ex);
+				continue;
+			}
+			boolean reusable = false;
+			List<String> accepted = new ArrayList<String>(); // Confirmed once the connection is released
+			try {
+				List<Put> rest = batch.subList(done, batch.size());
+				for (Put put : rest) {
+					OutputStream out = httpClient.sendPutRequest(put.startLine, put.content.length, true, put.fields);
+					out.write(put.content);
+				}
+				httpClient.flush(); // The whole burst at once
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for (Put put : rest) {
+					httpClient.receiveHeader();
+					while (httpClient.readContent(buffer) != -1) {
+						// The content of response is not used
+					}
+					int status = httpClient.getStatus();
+					if (status / 100 == 2) {
+						accepted.add(put.url);
+					} else {
+						logger.warning("Upload of " + put.url + " refused by server: " + status);
+					}
+					done++;
+				}
+				reusable = true;
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "Can not forward " + (batch.size() - done) + " uploads", ex);
+			} finally {
+				upstreamPool.checkin(httpClient, reusable);
+			}
+			for (String url : accepted) {
+				confirmed.accept(url);
+			}
+		}
+		if (done < batch.size()) {
+			logger.severe("Lost " + (batch.size() - done) + " uploads, the server can not be reached");
+		}
+	}
+
+	public long getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * An upload waiting to be forwarded.
+	 */
+	private static final class Put {
+
+		private final String url;
+		private final String startLine;
+		private final String[] fields;
+		private final byte[] content;
+
+		Put(String url, String startLine, String[] fields, byte[] content) {
+			this.url = url;
+			this.startLine = startLine;
+			this.fields = fields;
+			this.content = content;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package httpproxyservice;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * The buffered stream of responses to a client. A content sent through the
+ * channel of socket is written together with the header buffered before it,
+ * in one gathering write, instead of flushing the header on its own.
+ *
+ * @author Li Taiji
+ * @date 2019-12-22
+ *
+ */
+public class ResponseOutputStream extends BufferedOutputStream {
+
+	/**
+	 * @param out The stream of socket
+	 */
+	public ResponseOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Write the bytes buffered and a content, which is consumed.
+	 *
+	 * @param content
+	 * @param channel The blocking channel of socket
+	 * @throws IOException
+	 */
+	public synchronized void writeGathering(ByteBuffer content, SocketChannel channel) throws IOException {
+		ByteBuffer buffered = ByteBuffer.wrap(buf, 0, count);
+		ByteBuffer[] buffers = { buffered, content };
+		try {
+			while (buffered.hasRemaining() || content.hasRemaining()) {
+				channel.write(buffers);
+			}
+		} finally {
+			count = 0; // Nothing of it can be sent again after a failure
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package httpproxyservice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Optional command line switches of the servers, given after the required
+ * arguments as "--name" or "--name=value".
+ *
+ * @author Li Taiji
+ * @date 2019-12-07
+ *
+ */
+public class ServerOptions {
+
+	private final Map<String, String> options; // Switch name -> value
+
+	/**
+	 * @param args  command line argument
+	 * @param first The index of the first optional argument
+	 */
+	public ServerOptions(String[] args, int first) {
+		this.options = new HashMap<String, String>();
+		for (int i = first; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			}
+			int index = arg.indexOf('=');
+			if (index != -1) {
+				options.put(arg.substring(2, index), arg.substring(index + 1));
+			} else {
+				options.put(arg.substring(2), "true");
+			}
+		}
+	}
+
+	/**
+	 * @param name The name of switch
+	 * @return true if the switch is given
+	 */
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	/**
+	 * @param name         The name of switch
+	 * @param defaultValue The value used when the switch is not given
+	 * @return The value of switch
+	 */
+	public String get(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @param name         The name of switch
+	 * @param defaultValue The value used when the switch is not given
+	 * @return The value of switch
+	 */
+	public int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * @param name         The name of switch
+	 * @param defaultValue The value used when the switch is not given
+	 * @return The value of switch
+	 */
+	public long getLong(String name, long defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+}
@@ -0,0 +1,155 @@
+package httpproxyservice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ *
+ * Collapses concurrent cache misses of the same URL into one fetch from the
+ * origin. The first handler to miss becomes the leader of the flight and
+ * fetches the object; the handlers missing while it is in flight wait for it
+ * and then answer from the cache. An object changed on the origin meanwhile is
+ * invalidated without waiting for the fetch, which then does not publish what
+ * it has got.
+ *
+ * @author Li Taiji
+ * @date 2019-12-13
+ *
+ */
+public class SingleFlight {
+
+	private final ConcurrentHashMap<String, Fetch> flights;
+
+	public SingleFlight() {
+		this.flights = new ConcurrentHashMap<String, Fetch>();
+	}
+
+	/**
+	 * Join the flight of the URL, starting it if there is none. The leader must
+	 * call land() when its fetch is over, which may happen on another thread.
+	 *
+	 * @param url The URL of request
+	 * @return The flight of this call, whose isLeader() tells whether the caller
+	 *         must fetch
+	 */
+	public Flight join(String url) {
+		Fetch fetch = new Fetch(url);
+		Fetch existing = flights.putIfAbsent(url, fetch);
+		if (existing != null) {
+			return new Flight(existing, false);
+		}
+		return new Flight(fetch, true);
+	}
+
+	/**
+	 * End the flight of the leader and wake up the waiting handlers.
+	 *
+	 * @param flight The flight got from join() as leader
+	 * @param cached Whether the object is now in the cache
+	 */
+	public void land(Flight flight, boolean cached) {
+		if (!flight.leader) {
+			throw new IllegalStateException("Only the leader lands the flight of " + flight.fetch.url);
+		}
+		Fetch fetch = flight.fetch;
+		flights.remove(fetch.url, fetch);
+		fetch.cached = cached;
+		fetch.landed.countDown();
+	}
+
+	/**
+	 * Mark the fetch of the URL in flight, if any, as out of date, so it does not
+	 * publish the object. A publication in progress is waited for, so the caller
+	 * can remove what it has published afterwards.
+	 *
+	 * @param url The URL of object
+	 */
+	public void invalidate(String url) {
+		Fetch fetch = flights.get(url);
+		if (fetch != null) {
+			synchronized (fetch) {
+				fetch.invalidated = true;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of fetches in flight
+	 */
+	public int size() {
+		return flights.size();
+	}
+
+	/**
+	 * A fetch from the origin in progress.
+	 */
+	private static final class Fetch {
+
+		private final String url;
+		private final CountDownLatch landed = new CountDownLatch(1);
+		private volatile boolean cached;
+		private boolean invalidated; // Guarded by the fetch
+
+		Fetch(String url) {
+			this.url = url;
+		}
+	}
+
+	/**
+	 * A fetch as seen by one call of join(). Leadership belongs to the call, not
+	 * to its thread, as the leader may land on another thread and the same
+	 * thread may join again before that.
+	 */
+	public static final class Flight {
+
+		private final Fetch fetch;
+		private final boolean leader;
+
+		Flight(Fetch fetch, boolean leader) {
+			this.fetch = fetch;
+			this.leader = leader;
+		}
+
+		/**
+		 * @return true if this call has started the fetch and has to do it
+		 */
+		public boolean isLeader() {
+			return leader;
+		}
+
+		/**
+		 * Wait for the leader to finish its fetch.
+		 *
+		 * @param timeout millis
+		 * @return true if the object is now in the cache
+		 * @throws InterruptedException
+		 */
+		public boolean await(long timeout) throws InterruptedException {
+			return fetch.landed.await(timeout, TimeUnit.MILLISECONDS) && fetch.cached;
+		}
+
+		/**
+		 * Publish what has been fetched, unless the object has been invalidated
+		 * since the fetch started.
+		 *
+		 * @param publish Makes the object visible in the cache
+		 * @return false if the object has been invalidated or publish failed
+		 */
+		public boolean publish(BooleanSupplier publish) {
+			synchronized (fetch) {
+				return !fetch.invalidated && publish.getAsBoolean();
+			}
+		}
+
+		/**
+		 * @return true if the object has been invalidated since the fetch started
+		 */
+		public boolean isInvalidated() {
+			synchronized (fetch) {
+				return fetch.invalidated;
+			}
+		}
+	}
+}
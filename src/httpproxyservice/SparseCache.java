@@ -0,0 +1,271 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *
+ * The objects the proxy only has parts of, fetched for range requests. Each is
+ * a sparse file of the full length next to the cache file, and the ranges
+ * written into it so far. The parts are written at their positions, so a range
+ * requested again is sent from the file, and a file whose ranges cover it
+ * completely becomes an ordinary cache file. The least recently used sparse
+ * files are dropped beyond a fixed number, or when their full lengths exceed
+ * a budget of bytes, which is kept apart from the one of cache files. An
+ * object longer than the whole budget is not kept in parts at all.
+ *
+ * @author Li Taiji
+ * @date 2019-12-21
+ *
+ */
+public class SparseCache {
+
+	private final int maxFiles;
+	private final long maxBytes; // The most bytes of the full lengths of files
+	private final LinkedHashMap<String, SparseFile> files; // In the order of use
+	private long bytes; // The full lengths of files
+
+	/**
+	 * @param maxFiles The most objects kept in parts
+	 * @param maxBytes The most bytes the sparse files may grow to
+	 */
+	public SparseCache(int maxFiles, long maxBytes) {
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+		this.files = new LinkedHashMap<String, SparseFile>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param url The URL of object
+	 * @return The sparse file of object, or null if there is none
+	 */
+	public synchronized SparseFile get(String url) {
+		return files.get(url);
+	}
+
+	/**
+	 * Start a sparse file for an object, replacing the one of an older version.
+	 * An object longer than the budget is not kept in parts, and the other
+	 * files are not dropped for it.
+	 *
+	 * @param url   The URL of object
+	 * @param file  The sparse file
+	 * @param entry The entry of the whole object
+	 * @return The sparse file, or null if the object is longer than the budget
+	 * @throws IOException
+	 */
+	public synchronized SparseFile open(String url, File file, CacheEntry entry) throws IOException {
+		if (entry.getLength() > maxBytes) {
+			return null;
+		}
+		retire(files.remove(url));
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs(); // If the directory does not exist, it will be created.
+		}
+		SparseFile sparse = new SparseFile(file, entry);
+		files.put(url, sparse);
+		bytes += entry.getLength();
+		Iterator<SparseFile> eldest = files.values().iterator();
+		while ((files.size() > maxFiles || bytes > maxBytes) && eldest.hasNext()) {
+			SparseFile dropped = eldest.next();
+			eldest.remove();
+			retire(dropped);
+		}
+		return sparse;
+	}
+
+	/**
+	 * Drop the sparse file of an object, e.g. because it has changed.
+	 *
+	 * @param url The URL of object
+	 */
+	public synchronized void remove(String url) {
+		retire(files.remove(url));
+	}
+
+	private void retire(SparseFile sparse) {
+		if (sparse != null) {
+			bytes -= sparse.entry.getLength();
+			sparse.retire(true);
+		}
+	}
+
+	/**
+	 * Make a complete sparse file the cache file of its object.
+	 *
+	 * @param url    The URL of object
+	 * @param sparse The sparse file
+	 * @param target The cache file
+	 * @return false if the sparse file has been published or dropped meanwhile
+	 * @throws IOException
+	 */
+	public boolean publish(String url, SparseFile sparse, File target) throws IOException {
+		synchronized (this) {
+			if (!files.remove(url, sparse)) {
+				return false;
+			}
+			bytes -= sparse.entry.getLength();
+			sparse.retire(false);
+		}
+		Files.move(sparse.file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	public synchronized int size() {
+		return files.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * A file holding some ranges of an object. It is written and read through
+	 * one channel at absolute positions, so handlers may share it. A retired
+	 * file is closed once its last reader has released it.
+	 */
+	public static final class SparseFile {
+
+		private final File file;
+		private final CacheEntry entry;
+		private final FileChannel channel;
+		private final TreeMap<Long, Long> ranges; // The first byte and the byte after each range written
+		private int readers;
+		private boolean retired;
+		private boolean deleted; // Whether the file is deleted once closed
+
+		SparseFile(File file, CacheEntry entry) throws IOException {
+			this.file = file;
+			this.entry = entry;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.ranges = new TreeMap<Long, Long>();
+		}
+
+		/**
+		 * Write a part of content at its position.
+		 *
+		 * @param position The position of the first byte
+		 * @param b
+		 * @param off
+		 * @param len
+		 * @throws IOException
+		 */
+		public void write(long position, byte[] b, int off, int len) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			long at = position;
+			while (buffer.hasRemaining()) {
+				at += channel.write(buffer, at);
+			}
+			add(position, position + len);
+		}
+
+		/**
+		 * Mark a range as written, merging it with its neighbours.
+		 */
+		private synchronized void add(long start, long end) {
+			Map.Entry<Long, Long> before = ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+			}
+			Map.Entry<Long, Long> after;
+			while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				ranges.remove(after.getKey());
+			}
+			ranges.put(start, end);
+		}
+
+		/**
+		 * @param first The first byte
+		 * @param last  The last byte
+		 * @return The first and last byte of each range missing between them
+		 */
+		public synchronized List<long[]> gaps(long first, long last) {
+			List<long[]> gaps = new ArrayList<long[]>();
+			long position = first;
+			Map.Entry<Long, Long> range = ranges.floorEntry(position);
+			if (range == null || range.getValue() <= position) {
+				range = ranges.higherEntry(position);
+			}
+			while (position <= last) {
+				if (range == null || range.getKey() > last) {
+					gaps.add(new long[] { position, last });
+					break;
+				}
+				if (range.getKey() > position) {
+					gaps.add(new long[] { position, range.getKey() - 1 });
+				}
+				position = Math.max(position, range.getValue());
+				range = ranges.higherEntry(range.getKey());
+			}
+			return gaps;
+		}
+
+		/**
+		 * @return true if the ranges written cover the whole object
+		 */
+		public synchronized boolean isComplete() {
+			Long end = ranges.get(0L);
+			return end != null && end >= entry.getLength();
+		}
+
+		/**
+		 * Keep the file open for reading.
+		 *
+		 * @return false if it has been retired, it must not be used then
+		 */
+		public synchronized boolean acquire() {
+			if (retired) {
+				return false;
+			}
+			readers++;
+			return true;
+		}
+
+		public synchronized void release() {
+			readers--;
+			closeIfIdle();
+		}
+
+		private synchronized void retire(boolean delete) {
+			retired = true;
+			deleted = delete;
+			closeIfIdle();
+		}
+
+		private void closeIfIdle() {
+			if (retired && readers == 0 && channel.isOpen()) {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+					// Nothing is written any more
+				}
+				if (deleted) {
+					file.delete();
+				}
+			}
+		}
+
+		public FileChannel getChannel() {
+			return channel;
+		}
+
+		public CacheEntry getEntry() {
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * Receives the content of a PUT request into a file. The content is copied
+ * from the connection to a FileChannel through one buffer of fixed size, so an
+ * upload of any length, also one sent in chunks, takes the same memory. It is
+ * written to a temp file which replaces the target only once it is complete.
+ *
+ * @author Li Taiji
+ * @date 2019-12-19
+ *
+ */
+public class UploadReceiver {
+
+	private static final int BUFFER_SIZE = 64 * 1024; // The bytes copied at a time
+
+	private UploadReceiver() {
+	}
+
+	/**
+	 * receive the content of request into a file
+	 *
+	 * @param request The request, after its head has been read
+	 * @param file    The file to write
+	 * @param sync    Whether the file is forced to the disk before it replaces
+	 *                the target
+	 * @return The bytes received, or -1 if the client closed the connection
+	 *         before the content was complete, then the file is left unchanged
+	 * @throws IOException If the content is malformed or the file can not be
+	 *                     written
+	 */
+	public static long receive(HttpMessageReader request, File file, boolean sync) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs(); // If the directory does not exist, it will be created.
+		}
+		File temp = new File(file.getPath() + ".part" + Thread.currentThread().getId());
+		long received = -1;
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			received = transfer(request, Channels.newOutputStream(out));
+			if (received >= 0 && sync) {
+				out.force(true);
+			}
+		} finally {
+			if (received < 0) {
+				temp.delete();
+			}
+		}
+		if (received < 0) {
+			return -1;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			temp.delete();
+			throw ex;
+		}
+		return received;
+	}
+
+	/**
+	 * copy the content of request to a stream, which is neither flushed nor
+	 * closed
+	 *
+	 * @param request The request, after its head has been read
+	 * @param out     The stream to write
+	 * @return The bytes copied, or -1 if the client closed the connection before
+	 *         the content was complete
+	 * @throws IOException If the content is malformed or can not be written
+	 */
+	public static long transfer(HttpMessageReader request, OutputStream out) throws IOException {
+		InputStream content = request;
+		ChunkedInputStream chunked = null;
+		long length = -1; // Unknown for a chunked content
+		if (isChunked(request)) {
+			chunked = new ChunkedInputStream(request);
+			content = chunked;
+		} else {
+			length = getLength(request);
+			if (length < 0) {
+				throw new IOException("Malformed Content-Length");
+			}
+		}
+		long received = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (length < 0 || received < length) {
+			int max = length < 0 ? buffer.length : (int) Math.min(buffer.length, length - received);
+			int n = content.read(buffer, 0, max);
+			if (n == -1) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			received += n;
+		}
+		boolean complete = chunked != null ? chunked.isComplete() : received == length;
+		return complete ? received : -1;
+	}
+
+	/**
+	 * @param request The request, after its head has been read
+	 * @return true if the content is sent in chunks
+	 */
+	public static boolean isChunked(HttpMessageReader request) {
+		return request.headerContains("Transfer-Encoding", "chunked");
+	}
+
+	/**
+	 * @param request The request, after its head has been read, not chunked
+	 * @return The length of content, 0 if it has none, or -1 if it is malformed
+	 */
+	public static long getLength(HttpMessageReader request) {
+		if (request.getHeader("Content-Length") == null) {
+			return 0;
+		}
+		return request.getHeaderLong("Content-Length", -1);
+	}
+
+	/**
+	 * Check the framing of the content before it is read. A content whose end
+	 * can not be told would be read as the next request, so it is answered with
+	 * "400 Bad Request" and the connection is closed.
+	 *
+	 * @param request The request, after its head has been read
+	 * @return true if the content is chunked or has a valid length
+	 */
+	public static boolean hasValidLength(HttpMessageReader request) {
+		return isChunked(request) || getLength(request) >= 0;
+	}
+}
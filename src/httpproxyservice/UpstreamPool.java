@@ -0,0 +1,186 @@
+package httpproxyservice;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * A pool of persistent connections to the origin servers, shared by the
+ * handlers of proxy. Each origin has at most maxPerOrigin connections checked
+ * out at once; returned connections are kept idle for reuse until they have
+ * been idle longer than idleTimeout.
+ *
+ * @author Li Taiji
+ * @date 2019-12-09
+ *
+ */
+public class UpstreamPool {
+
+	private static final long PROBE_AFTER = 2000; // Idle millis after which a connection is probed before reuse
+	private final int maxPerOrigin;
+	private final long idleTimeout; // millis
+	private final long checkoutTimeout; // millis
+	private final LatencyHistogram connectLatency; // The time to open new connections
+	private final Logger logger; // The log file
+	private final ConcurrentHashMap<String, Origin> origins;
+
+	/**
+	 * @param maxPerOrigin    The connections of an origin checked out at once
+	 * @param idleTimeout     The millis a connection stays idle before it is closed
+	 * @param checkoutTimeout The millis to wait for a free connection
+	 * @param connectLatency  Records the time to open new connections
+	 * @param logger          Log file
+	 */
+	public UpstreamPool(int maxPerOrigin, long idleTimeout, long checkoutTimeout, LatencyHistogram connectLatency,
+			Logger logger) {
+		this.maxPerOrigin = maxPerOrigin;
+		this.idleTimeout = idleTimeout;
+		this.checkoutTimeout = checkoutTimeout;
+		this.connectLatency = connectLatency;
+		this.logger = logger;
+		this.origins = new ConcurrentHashMap<String, Origin>();
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "upstream-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(idleTimeout / 2, 100);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get a connection to the origin, reusing an idle one if it is still healthy.
+	 * Every connection checked out must be given back with checkin().
+	 *
+	 * @param host The host of origin
+	 * @param port The port of origin
+	 * @return connection
+	 * @throws IOException If no connection is free in time or it can not connect
+	 */
+	public HttpClient checkout(String host, int port) throws IOException {
+		Origin origin = origins.computeIfAbsent(host + ":" + port, key -> new Origin());
+		try {
+			if (!origin.permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("No free connection to " + host + ":" + port);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for a connection", ex);
+		}
+		try {
+			Idle idle;
+			while ((idle = origin.poll()) != null) {
+				boolean probe = System.currentTimeMillis() - idle.since > PROBE_AFTER;
+				if (idle.client.isHealthy(probe)) {
+					return idle.client;
+				}
+				closeQuietly(idle.client);
+			}
+			HttpClient client = new HttpClient();
+			long begin = System.nanoTime();
+			client.connect(host, port);
+			connectLatency.recordSince(begin);
+			return client;
+		} catch (IOException | RuntimeException ex) {
+			origin.permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Give back a connection got from checkout().
+	 *
+	 * @param client   The connection
+	 * @param reusable Whether the last response was read completely and the
+	 *                 server keeps the connection open
+	 */
+	public void checkin(HttpClient client, boolean reusable) {
+		Origin origin = origins.get(client.getHost() + ":" + client.getPort());
+		if (reusable && client.isKeepAlive()) {
+			client.clearHeader();
+			client.clearContent();
+			origin.push(new Idle(client, System.currentTimeMillis()));
+		} else {
+			closeQuietly(client);
+		}
+		origin.permits.release();
+	}
+
+	/**
+	 * Close the connections that have been idle too long.
+	 */
+	private void evictIdle() {
+		long deadline = System.currentTimeMillis() - idleTimeout;
+		for (Origin origin : origins.values()) {
+			for (HttpClient client : origin.removeIdleBefore(deadline)) {
+				closeQuietly(client);
+			}
+		}
+	}
+
+	private void closeQuietly(HttpClient client) {
+		try {
+			client.close();
+		} catch (IOException ex) {
+			logger.log(Level.FINE, "Close upstream connection error", ex);
+		}
+	}
+
+	/**
+	 * The connections to one origin.
+	 */
+	private final class Origin {
+
+		private final Semaphore permits;
+		private final ArrayDeque<Idle> idle; // Most recently returned first
+
+		Origin() {
+			this.permits = new Semaphore(maxPerOrigin);
+			this.idle = new ArrayDeque<Idle>();
+		}
+
+		synchronized Idle poll() {
+			return idle.pollFirst();
+		}
+
+		synchronized void push(Idle connection) {
+			idle.addFirst(connection);
+		}
+
+		synchronized ArrayDeque<HttpClient> removeIdleBefore(long deadline) {
+			ArrayDeque<HttpClient> expired = new ArrayDeque<HttpClient>();
+			Iterator<Idle> iterator = idle.descendingIterator(); // Oldest first
+			while (iterator.hasNext()) {
+				Idle connection = iterator.next();
+				if (connection.since >= deadline) {
+					break;
+				}
+				iterator.remove();
+				expired.add(connection.client);
+			}
+			return expired;
+		}
+	}
+
+	/**
+	 * An idle connection and the time it was returned.
+	 */
+	private static final class Idle {
+
+		private final HttpClient client;
+		private final long since;
+
+		Idle(HttpClient client, long since) {
+			this.client = client;
+			this.since = since;
+		}
+	}
+}
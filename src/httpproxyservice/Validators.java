@@ -0,0 +1,104 @@
+package httpproxyservice;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ *
+ * The validators of a representation, "Last-Modified" and "ETag", and the
+ * evaluation of the conditional requests made with them ("If-None-Match" and
+ * "If-Modified-Since"). A conditional request whose validators still match is
+ * answered with "304 Not Modified" and no content.
+ *
+ * @author Li Taiji
+ * @date 2019-12-15
+ *
+ */
+public class Validators {
+
+	private Validators() {
+	}
+
+	/**
+	 * Make a strong entity tag from the length and the modification time of file,
+	 * which change whenever the file is replaced.
+	 *
+	 * @param file
+	 * @return ETag, quoted
+	 */
+	public static String etag(File file) {
+		return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+	}
+
+	/**
+	 * @param millis The time since the epoch
+	 * @return The time in the format of HTTP, e.g. "Sun, 15 Dec 2019 08:00:00 GMT"
+	 */
+	public static String formatDate(long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis),
+				ZoneOffset.UTC));
+	}
+
+	/**
+	 * @param date A time in the format of HTTP
+	 * @return The time since the epoch in millis, or -1 if it is missing or
+	 *         malformed
+	 */
+	public static long parseDate(String date) {
+		if (date == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Evaluate the conditions of a GET request. "If-None-Match" takes precedence
+	 * over "If-Modified-Since".
+	 *
+	 * @param request      The request, after its head has been read
+	 * @param etag         The entity tag of representation, or null if it has none
+	 * @param lastModified The modification time in millis, or -1 if unknown
+	 * @return true if the client holds the representation already
+	 */
+	public static boolean isNotModified(HttpMessageReader request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return etag != null && matches(ifNoneMatch, etag);
+		}
+		long ifModifiedSince = parseDate(request.getHeader("If-Modified-Since"));
+		// HTTP dates have a precision of seconds
+		return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * Compare the entity tags weakly, as required for If-None-Match.
+	 *
+	 * @param list The comma separated list of the request, or "*"
+	 * @param etag The entity tag of representation
+	 * @return true if one of the tags matches
+	 */
+	private static boolean matches(String list, String etag) {
+		if (list.trim().equals("*")) {
+			return true;
+		}
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String tag : list.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}